@@ -1,11 +1,30 @@
 package adnascreen;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -14,9 +33,11 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFlag;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -25,6 +46,7 @@ import htsjdk.samtools.cram.ref.ReferenceSource;
 
 /**
  * Compare the contents of a sorted alignment file to a series of sorted input source files. 
+ * In unordered mode, records may appear in a different order, within a window of pending records. 
  * @author mmah
  *
  */
@@ -32,7 +54,13 @@ public class AlignmentComparison {
 	public static final int MATCH = 0;
 	public static final int NO_MATCH = 1;
 	
-	public static int main(String[] args) throws IOException, ParseException{
+	public static final int DEFAULT_WINDOW = 1000000;
+	private static final int BATCH_SIZE = 1000;
+	private static final List<SAMRecord> END_OF_INPUT = Collections.emptyList();
+	// duplicate flag is excluded from comparisons
+	private static final int FLAG_MASK = 0xffff ^ SAMFlag.DUPLICATE_READ.intValue();
+	
+	public static int main(String[] args) throws IOException, ParseException, InterruptedException, ExecutionException{
 		CommandLineParser parser = new DefaultParser();
 		
 		Option inputFiles  = Option.builder("i").longOpt("input").required().hasArgs().desc("Input SAM/BAM/CRAM file(s). This program checks that all reads in the input files are present in the output file.").build();
@@ -41,6 +69,11 @@ public class AlignmentComparison {
 		options.addRequiredOption("c", "check", true, "SAM/BAM/CRAM file to check. This program checks that all reads from inputs files are present in this file.");
 		options.addOption(inputFiles);
 		options.addOption("r", "reference", true, "CRAM reference: if any cram files are used, the reference must be specified and the same for all CRAM files.");
+		options.addOption("u", "unordered", false, "Records may be in a different order in the inputs and the check file. Files are decoded on separate threads.");
+		options.addOption("w", "window", true, "Maximum number of unmatched records held in unordered mode (default " + DEFAULT_WINDOW + ")");
+		options.addOption(null, "indexed", false, "Compare coordinate-sorted, indexed files by reference sequence, using queries");
+		options.addOption(null, "threads", true, "Number of threads for indexed comparison");
+		options.addOption(null, "digest", false, "Compare order-independent digests of the check file and inputs, each file on its own thread; base qualities must match exactly");
 		CommandLine commandLine	= parser.parse(options, args);
 		
 		String checkFilename = commandLine.getOptionValue("check");
@@ -68,7 +101,18 @@ public class AlignmentComparison {
 		}
 		
 		String[] tagsToCheck = commandLine.getArgs();
-		boolean match = compareAlignmentFiles(checkFilename, inputFilenames, tagsToCheck, cramReference);
+		boolean match;
+		if (commandLine.hasOption("unordered")) {
+			int window = Integer.valueOf(commandLine.getOptionValue("window", String.valueOf(DEFAULT_WINDOW)));
+			match = compareAlignmentFilesUnordered(checkFilename, inputFilenames, tagsToCheck, cramReference, window);
+		} else if (commandLine.hasOption("digest")) {
+			match = compareAlignmentFilesDigest(checkFilename, inputFilenames, tagsToCheck, cramReference);
+		} else if (commandLine.hasOption("indexed")) {
+			int numThreads = Integer.valueOf(commandLine.getOptionValue("threads", "1"));
+			match = compareAlignmentFilesByReference(checkFilename, inputFilenames, tagsToCheck, cramReference, numThreads);
+		} else {
+			match = compareAlignmentFiles(checkFilename, inputFilenames, tagsToCheck, cramReference);
+		}
 		System.out.println("Match: " + match);
 		return match ? MATCH : NO_MATCH;
 	}
@@ -155,12 +199,11 @@ public class AlignmentComparison {
 				}
 			}
 			
-			int flag_mask = 0xffff ^ SAMFlag.DUPLICATE_READ.intValue(); // exclude duplicate bit
 			if (!x.getReadName().equals(y.getReadName())){
 				System.err.println("read name mismatch");
 				return false;
 			}
-			if ((x.getFlags() & flag_mask) != (y.getFlags() & flag_mask)) {
+			if ((x.getFlags() & FLAG_MASK) != (y.getFlags() & FLAG_MASK)) {
 				System.err.println("flag mismatch");
 				return false;
 			}
@@ -210,65 +253,416 @@ public class AlignmentComparison {
 			}
 			SAMRecordIterator outputIterator = outputReader.iterator();
 			
-			SAMRecordIterator[] inputIterators = new SAMRecordIterator[inputFilenames.length];
-			SAMRecord[] currentInputRecords = new SAMRecord[inputFilenames.length];
+			List<Iterator<SAMRecord>> inputIterators = new ArrayList<Iterator<SAMRecord>>(inputFilenames.length);
 			for (int n = 0; n < inputFilenames.length; n++) {
 				if(isCramFilename(inputFilenames[n])) {
 					inputReaders[n] = SamReaderFactory.makeDefault().referenceSource(reference).open(SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilenames[n]))));
 				} else {
 					inputReaders[n] = samReaderFactory.open(SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilenames[n]))));
 				}
-				inputIterators[n] = inputReaders[n].iterator();
-				currentInputRecords[n] = inputIterators[n].next();
+				inputIterators.add(inputReaders[n].iterator());
 				// check that reference is the same
 				if (!inputReaders[n].getFileHeader().getSequenceDictionary().equals(outputReader.getFileHeader().getSequenceDictionary())) {
 					return false;
 				}
 			}
+			return compareRecords(outputIterator, inputIterators, tagsToCheck, System.err);
+		}
+		finally { // cleanup open files
+			if (outputReader != null) {
+				outputReader.close();
+			}
+			for (SamReader reader : inputReaders) {
+				if (reader != null)
+					reader.close();
+			}
+		}
+	}
+	
+	/**
+	 * Each check record should be the next record of exactly one input, and no input records should remain
+	 * @param check records of the file to check
+	 * @param inputs records of each input file, in the same order as the check file
+	 * @param report stream for the first mismatch
+	 * @return true if records match
+	 */
+	private static boolean compareRecords(Iterator<SAMRecord> check, List<? extends Iterator<SAMRecord>> inputs, String[] tagsToCheck, PrintStream report) {
+		SAMRecord[] currentInputRecords = new SAMRecord[inputs.size()];
+		for (int n = 0; n < inputs.size(); n++) {
+			currentInputRecords[n] = inputs.get(n).hasNext() ? inputs.get(n).next() : null;
+		}
+		// each final output file record should appear in exactly one input file
+		while(check.hasNext()) {
+			SAMRecord toFind = check.next();
+			boolean found = false;
+			for (int n = 0; n < inputs.size(); n++) {
+				if(compareNames(toFind, currentInputRecords[n])) {
+					if(compareFullAlignments(toFind, currentInputRecords[n], tagsToCheck)) {
+						found = true;
+						if (inputs.get(n).hasNext())
+							currentInputRecords[n] = inputs.get(n).next();
+						else
+							currentInputRecords[n] = null;
+						break;
+					}
+				}
+			}
+			if (!found) {
+				report.println("In to check but not in inputs: ");
+				printSAMRecordFullTags(toFind, report);
+				report.println("current inputs: ");
+				for (int n = 0; n < inputs.size(); n++) {
+					printSAMRecordFullTags(currentInputRecords[n], report);
+				}
+				return false;
+			}
+		}
+		// there should be no input records remaining
+		for (SAMRecord remaining : currentInputRecords) {
+			if (remaining != null) {
+				report.println("Not in check: " + remaining.toString());
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Compare coordinate-sorted, indexed files one reference sequence at a time, with reference sequences in parallel. 
+	 * Unplaced unmapped reads are compared concurrently with the reference sequences. 
+	 * The first mismatch in each reference sequence is reported. 
+	 * @param numThreads
+	 * @return true if all reference sequences match
+	 */
+	public static boolean compareAlignmentFilesByReference(String finalOutputFilename, String[] inputFilenames, String[] tagsToCheck, CRAMReferenceSource reference, int numThreads) throws IOException, InterruptedException, ExecutionException {
+		SAMSequenceDictionary dictionary;
+		try (SamReader checkReader = ReferenceSharding.openIndexed(finalOutputFilename, reference)) {
+			dictionary = checkReader.getFileHeader().getSequenceDictionary();
+		}
+		for (String inputFilename : inputFilenames) {
+			try (SamReader inputReader = ReferenceSharding.openIndexed(inputFilename, reference)) {
+				// check that reference is the same
+				if (!inputReader.getFileHeader().getSequenceDictionary().equals(dictionary)) {
+					return false;
+				}
+			}
+		}
+		
+		// each thread queries with its own readers, check file first
+		List<SamReader> readers = Collections.synchronizedList(new ArrayList<SamReader>());
+		ThreadLocal<SamReader[]> threadReaders = ThreadLocal.withInitial(() -> {
+			SamReader[] opened = new SamReader[inputFilenames.length + 1];
+			try {
+				for (int n = 0; n < opened.length; n++) {
+					opened[n] = ReferenceSharding.openIndexed(n == 0 ? finalOutputFilename : inputFilenames[n - 1], reference);
+					readers.add(opened[n]);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return opened;
+		});
+		ExecutorService unmappedThread = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> unmapped = unmappedThread.submit(() -> compareQueries(threadReaders.get(), tagsToCheck, SamReader::queryUnmapped));
+			List<String> mismatches = ReferenceSharding.forEachReference(dictionary, numThreads,
+					sequence -> compareQueries(threadReaders.get(), tagsToCheck, r -> r.queryOverlapping(sequence.getSequenceName(), 0, 0)));
+			mismatches.add(unmapped.get());
+			boolean match = true;
+			for (int n = 0; n < mismatches.size(); n++) {
+				if (mismatches.get(n) != null) {
+					String name = n < dictionary.size() ? dictionary.getSequence(n).getSequenceName() : "unmapped";
+					System.err.println("Mismatch in " + name + ":");
+					System.err.print(mismatches.get(n));
+					match = false;
+				}
+			}
+			return match;
+		} finally {
+			unmappedThread.shutdownNow();
+			for (SamReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+	
+	/**
+	 * @param readers check file reader, then input readers
+	 * @param query
+	 * @return report of first mismatch, or null if records match
+	 */
+	private static String compareQueries(SamReader[] readers, String[] tagsToCheck, Function<SamReader, SAMRecordIterator> query) {
+		SAMRecordIterator[] iterators = new SAMRecordIterator[readers.length];
+		try {
+			for (int n = 0; n < readers.length; n++) {
+				// htsjdk allows one open iterator per reader
+				iterators[n] = query.apply(readers[n]);
+			}
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			boolean match = compareRecords(iterators[0], Arrays.asList(iterators).subList(1, iterators.length), tagsToCheck, new PrintStream(report));
+			return match ? null : report.toString();
+		} finally {
+			for (SAMRecordIterator iterator : iterators) {
+				if (iterator != null)
+					iterator.close();
+			}
+		}
+	}
+	
+	/**
+	 * Check that the check file and the union of the input files contain the same records, in any order, 
+	 * by comparing digests. Each file is read on its own thread, in constant memory. 
+	 * Mismatched records are not identified. 
+	 * Base qualities must match exactly, so records with missing qualities in one file, which other modes accept, do not match. 
+	 * @return true if digests match
+	 */
+	public static boolean compareAlignmentFilesDigest(String finalOutputFilename, String[] inputFilenames, String[] tagsToCheck, CRAMReferenceSource reference) throws IOException, InterruptedException, ExecutionException {
+		SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault();
+		if (reference != null)
+			samReaderFactory.referenceSource(reference);
+		ExecutorService pool = Executors.newFixedThreadPool(inputFilenames.length + 1);
+		List<SamReader> readers = new ArrayList<SamReader>();
+		try {
+			for (int n = 0; n <= inputFilenames.length; n++) {
+				String filename = n == 0 ? finalOutputFilename : inputFilenames[n - 1];
+				readers.add(samReaderFactory.open(SamInputResource.of(new BufferedInputStream(new FileInputStream(filename)))));
+				// check that reference is the same
+				if (!readers.get(n).getFileHeader().getSequenceDictionary().equals(readers.get(0).getFileHeader().getSequenceDictionary())) {
+					return false;
+				}
+			}
+			List<Future<AlignmentDigest>> digests = new ArrayList<Future<AlignmentDigest>>();
+			for (SamReader reader : readers) {
+				digests.add(pool.submit(() -> {
+					AlignmentDigest digest = new AlignmentDigest(tagsToCheck);
+					for (SAMRecord record : reader) {
+						digest.add(record);
+					}
+					return digest;
+				}));
+			}
+			AlignmentDigest checkDigest = digests.get(0).get();
+			AlignmentDigest inputsDigest = new AlignmentDigest(tagsToCheck);
+			for (int n = 1; n < digests.size(); n++) {
+				inputsDigest.combine(digests.get(n).get());
+			}
+			if (!checkDigest.matches(inputsDigest)) {
+				System.err.println("check: " + checkDigest);
+				System.err.println("inputs: " + inputsDigest);
+				return false;
+			}
+			return true;
+		} finally {
+			pool.shutdownNow();
+			for (SamReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+	
+	/**
+	 * Check that the check file is a permutation of the union of the input files. 
+	 * Records are keyed by read name and flags. Unmatched records from both sides are held until 
+	 * their match is read, so files need only be in approximately the same order. 
+	 * Each file is decoded on its own thread. 
+	 * @param window maximum number of unmatched records held at once
+	 * @return true if every record is matched
+	 */
+	public static boolean compareAlignmentFilesUnordered(String finalOutputFilename, String[] inputFilenames, String[] tagsToCheck, CRAMReferenceSource reference, int window) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(inputFilenames.length + 1);
+		try {
+			ThreadedReader checkReader = new ThreadedReader(finalOutputFilename, reference, pool);
+			ThreadedReader[] inputReaders = new ThreadedReader[inputFilenames.length];
+			for (int n = 0; n < inputFilenames.length; n++) {
+				inputReaders[n] = new ThreadedReader(inputFilenames[n], reference, pool);
+				// check that reference is the same
+				if (!inputReaders[n].getFileHeader().getSequenceDictionary().equals(checkReader.getFileHeader().getSequenceDictionary())) {
+					return false;
+				}
+			}
 			
-			// each final output file record should appear in exactly one input file
-			while(outputIterator.hasNext()) {
-				SAMRecord toFind = outputIterator.next();
-				boolean found = false;
-				for (int n = 0; n < inputIterators.length; n++) {
-					if(compareNames(toFind, currentInputRecords[n])) {
-						if(compareFullAlignments(toFind, currentInputRecords[n], tagsToCheck)) {
-							found = true;
-							if (inputIterators[n].hasNext())
-								currentInputRecords[n] = inputIterators[n].next();
-							else
-								currentInputRecords[n] = null;
-							break;
-						}
+			Map<String, List<SAMRecord>> pendingCheck = new HashMap<String, List<SAMRecord>>();
+			Map<String, List<SAMRecord>> pendingInputs = new HashMap<String, List<SAMRecord>>();
+			int numPending = 0;
+			// unmatched records from each input, used to choose the next input to read
+			int[] pendingByInput = new int[inputReaders.length];
+			Map<SAMRecord, Integer> inputOfPending = new IdentityHashMap<SAMRecord, Integer>();
+			boolean[] inputDone = new boolean[inputReaders.length];
+			long checkRecords = 0;
+			long inputRecords = 0;
+			int nextInput = 0;
+			
+			SAMRecord toFind = checkReader.next();
+			while (true) {
+				if (toFind != null) {
+					checkRecords++;
+					SAMRecord found = removeMatch(pendingInputs, toFind, tagsToCheck);
+					if (found != null) {
+						numPending--;
+						pendingByInput[inputOfPending.remove(found)]--;
+					} else {
+						addPending(pendingCheck, toFind);
+						numPending++;
 					}
+					toFind = checkReader.next();
 				}
-				if (!found) {
-					System.err.println("In to check but not in inputs: ");
-					printSAMRecordFullTags(toFind, System.err);
-					System.err.println("current inputs: ");
-					for (int n = 0; n < inputIterators.length; n++) {
-						printSAMRecordFullTags(currentInputRecords[n], System.err);
+				// read inputs at the same rate as the check file
+				// prefer the input with the fewest unmatched records, which is the one that is behind
+				while (inputRecords < checkRecords || toFind == null) {
+					int chosen = -1;
+					for (int offset = 0; offset < inputReaders.length; offset++) {
+						int n = (nextInput + offset) % inputReaders.length;
+						if (!inputDone[n] && (chosen < 0 || pendingByInput[n] < pendingByInput[chosen]))
+							chosen = n;
+					}
+					if (chosen < 0)
+						break;
+					nextInput = (chosen + 1) % inputReaders.length;
+					SAMRecord inputRecord = inputReaders[chosen].next();
+					if (inputRecord == null) {
+						inputDone[chosen] = true;
+						continue;
+					}
+					inputRecords++;
+					if (removeMatch(pendingCheck, inputRecord, tagsToCheck) != null) {
+						numPending--;
+					} else if (toFind == null) {
+						System.err.println("Not in check: " + inputRecord.toString());
+						return false;
+					} else {
+						addPending(pendingInputs, inputRecord);
+						numPending++;
+						pendingByInput[chosen]++;
+						inputOfPending.put(inputRecord, chosen);
 					}
+				}
+				if (numPending > window) {
+					System.err.println("More than " + window + " unmatched records");
 					return false;
 				}
+				if (toFind == null)
+					break;
 			}
-			// there should be no input records remaining
-			for (SAMRecord remaining : currentInputRecords) {
-				if (remaining != null) {
+			for (List<SAMRecord> records : pendingCheck.values()) {
+				for (SAMRecord remaining : records) {
+					System.err.println("In to check but not in inputs: ");
+					printSAMRecordFullTags(remaining, System.err);
+					return false;
+				}
+			}
+			for (List<SAMRecord> records : pendingInputs.values()) {
+				for (SAMRecord remaining : records) {
 					System.err.println("Not in check: " + remaining.toString());
 					return false;
 				}
 			}
 			return true;
+		} finally {
+			pool.shutdownNow();
 		}
-		finally { // cleanup open files
-			if (outputReader != null) {
-				outputReader.close();
+	}
+	
+	private static String key(SAMRecord record) {
+		return record.getReadName() + '\t' + (record.getFlags() & FLAG_MASK);
+	}
+	
+	private static void addPending(Map<String, List<SAMRecord>> pending, SAMRecord record) {
+		// most keys have one record
+		pending.computeIfAbsent(key(record), k -> new LinkedList<SAMRecord>()).add(record);
+	}
+	
+	/**
+	 * @return pending record matching record, which is removed, or null if there is none
+	 */
+	private static SAMRecord removeMatch(Map<String, List<SAMRecord>> pending, SAMRecord record, String[] tagsToCheck) {
+		String key = key(record);
+		List<SAMRecord> candidates = pending.get(key);
+		if (candidates == null)
+			return null;
+		Iterator<SAMRecord> i = candidates.iterator();
+		while (i.hasNext()) {
+			SAMRecord candidate = i.next();
+			if (compareFullAlignments(record, candidate, tagsToCheck)) {
+				i.remove();
+				if (candidates.isEmpty())
+					pending.remove(key);
+				return candidate;
 			}
-			for (SamReader reader : inputReaders) {
-				if (reader != null)
-					reader.close();
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads and fully decodes records on a pool thread, handing them over in batches
+	 */
+	private static class ThreadedReader {
+		private final BlockingQueue<List<SAMRecord>> batches = new ArrayBlockingQueue<List<SAMRecord>>(4);
+		private final SAMFileHeader header;
+		private volatile Exception error = null;
+		private Iterator<SAMRecord> current = Collections.emptyIterator();
+		
+		ThreadedReader(String filename, CRAMReferenceSource reference, ExecutorService pool) throws IOException {
+			SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.EAGERLY_DECODE);
+			if (reference != null)
+				samReaderFactory.referenceSource(reference);
+			SamReader reader = samReaderFactory.open(SamInputResource.of(new BufferedInputStream(new FileInputStream(filename))));
+			header = reader.getFileHeader();
+			pool.submit(() -> {
+				try (SamReader r = reader) {
+					SAMRecordIterator i = r.iterator();
+					List<SAMRecord> batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+					while (i.hasNext()) {
+						batch.add(i.next());
+						if (batch.size() == BATCH_SIZE) {
+							batches.put(batch);
+							batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+						}
+					}
+					if (batch.size() > 0)
+						batches.put(batch);
+				} catch (InterruptedException e) {
+					return; // comparison is finished
+				} catch (Exception e) {
+					error = e;
+				}
+				try {
+					batches.put(END_OF_INPUT);
+				} catch (InterruptedException e) {
+					// comparison is finished
+				}
+			});
+		}
+		
+		SAMFileHeader getFileHeader() {
+			return header;
+		}
+		
+		/**
+		 * @return next record, or null at end of file
+		 */
+		SAMRecord next() throws IOException {
+			while (!current.hasNext()) {
+				List<SAMRecord> batch;
+				try {
+					batch = batches.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				if (batch == END_OF_INPUT) {
+					// leave end marker for any later calls
+					batches.offer(END_OF_INPUT);
+					if (error instanceof IOException)
+						throw (IOException) error;
+					else if (error instanceof RuntimeException)
+						throw (RuntimeException) error;
+					else if (error != null)
+						throw new IOException(error);
+					return null;
+				}
+				current = batch.iterator();
 			}
+			return current.next();
 		}
 	}
 }
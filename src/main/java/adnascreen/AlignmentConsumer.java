@@ -0,0 +1,21 @@
+package adnascreen;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Receives each alignment from a single pass through an alignment file. 
+ * Outputs are written when the consumer is closed. 
+ *
+ */
+public interface AlignmentConsumer extends Closeable {
+	/**
+	 * Process one alignment. Consumers share records, so a consumer 
+	 * that modifies a record must work on its own copy. 
+	 * @param record
+	 * @throws IOException
+	 */
+	void accept(SAMRecord record) throws IOException;
+}
@@ -0,0 +1,156 @@
+package adnascreen;
+
+import java.lang.reflect.Array;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Order-independent digest of a set of alignments.
+ * Each record is hashed over the fields compared by AlignmentComparison.compareFullAlignments,
+ * and record hashes are summed, so the digest of a multiset does not depend on record order
+ * and digests of disjoint files can be combined.
+ * Memory use is constant.
+ * Qualities are stricter than in compareFullAlignments, which ignores a quality length mismatch
+ * when one record has one quality or none, such as '*' in one file and full qualities in the other.
+ * No hash can allow that mismatch, so here such records do not match.
+ *
+ */
+public class AlignmentDigest {
+	// duplicate flag is excluded, as in compareFullAlignments
+	private static final int FLAG_MASK = 0xffff ^ SAMFlag.DUPLICATE_READ.intValue();
+	// Murmur3 x64 constants
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final String[] tagsToCheck;
+	private long count = 0;
+	// sums of the two halves of 128-bit record hashes
+	private long sum1 = 0;
+	private long sum2 = 0;
+	// per record hash state
+	private long h1;
+	private long h2;
+
+	public AlignmentDigest(String[] tagsToCheck) {
+		this.tagsToCheck = tagsToCheck;
+	}
+
+	public void add(SAMRecord record) {
+		h1 = 0x9e3779b97f4a7c15L;
+		h2 = 0xc2b2ae3d27d4eb4fL;
+		mixBytes(record.getReadBases());
+		// qualities are always compared, unlike compareFullAlignments
+		mixBytes(record.getBaseQualities());
+		mixString(record.getReadName());
+		mix(record.getFlags() & FLAG_MASK);
+		mixString(record.getReferenceName());
+		mix(((long) record.getAlignmentStart() << 32) | record.getMappingQuality());
+		mix(record.getCigar().numCigarElements());
+		for(CigarElement element : record.getCigar().getCigarElements()) {
+			mix(((long) element.getLength() << 8) | element.getOperator().ordinal());
+		}
+		for(String tag : tagsToCheck) {
+			mixValue(record.getAttribute(tag));
+		}
+		sum1 += fmix64(h1);
+		sum2 += fmix64(h2);
+		count++;
+	}
+
+	/**
+	 * Add records of another digest to this one
+	 * @param other
+	 */
+	public void combine(AlignmentDigest other) {
+		count += other.count;
+		sum1 += other.sum1;
+		sum2 += other.sum2;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public boolean matches(AlignmentDigest other) {
+		return count == other.count && sum1 == other.sum1 && sum2 == other.sum2;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d records, digest %016x%016x", count, sum1, sum2);
+	}
+
+	private void mix(long k) {
+		k *= C1;
+		k = Long.rotateLeft(k, 31);
+		k *= C2;
+		h1 ^= k;
+		h1 = Long.rotateLeft(h1, 27) * 5 + 0x52dce729;
+		h2 ^= Long.rotateLeft(k, 33);
+		h2 = Long.rotateLeft(h2, 31) * 5 + 0x38495ab5;
+		h2 += h1;
+	}
+
+	private void mixBytes(byte[] bytes) {
+		mix(bytes.length);
+		int n = 0;
+		for(; n + 8 <= bytes.length; n += 8) {
+			long k = 0;
+			for(int b = 7; b >= 0; b--) {
+				k = (k << 8) | (bytes[n + b] & 0xff);
+			}
+			mix(k);
+		}
+		if(n < bytes.length) {
+			long k = 0;
+			for(int b = bytes.length - 1; b >= n; b--) {
+				k = (k << 8) | (bytes[b] & 0xff);
+			}
+			mix(k);
+		}
+	}
+
+	private void mixString(String s) {
+		mix(s.length());
+		int n = 0;
+		for(; n + 4 <= s.length(); n += 4) {
+			mix((long) s.charAt(n) | (long) s.charAt(n + 1) << 16 | (long) s.charAt(n + 2) << 32 | (long) s.charAt(n + 3) << 48);
+		}
+		long k = 0;
+		for(int shift = 0; n < s.length(); n++, shift += 16) {
+			k |= (long) s.charAt(n) << shift;
+		}
+		mix(k);
+	}
+
+	/**
+	 * Tag values are hashed by their text, so equal values of different integer types match.
+	 * Array values are hashed by their elements.
+	 */
+	private void mixValue(Object value) {
+		if(value == null) {
+			mix(-1);
+		} else if(value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			mix(1);
+			mix(length);
+			for(int n = 0; n < length; n++) {
+				mixString(Array.get(value, n).toString());
+			}
+		} else {
+			mix(0);
+			mixString(value.toString());
+		}
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -2,9 +2,11 @@ package adnascreen;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
@@ -37,7 +39,36 @@ import htsjdk.samtools.SamReaderFactory;
  *
  */
 public class AssignReadGroups {
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+	// SimpleDateFormat is not thread-safe
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyyMMdd"));
+	
+	private final String sampleID;
+	private final String label;
+	private final Date date;
+	private final String library;
+	private final String sequencingCenter;
+	private final String sequencingPlatform;
+	private final boolean lenient;
+	private final String dateString;
+	// key format is platform unit: flowcellID.lane
+	// this will be unique because flowcell IDs are unique
+	private final Map<String, SAMReadGroupRecord> readGroups = new HashMap<String, SAMReadGroupRecord>();
+	// read group IDs by read name prefix instrument:runNumber:flowcellID:lane:
+	// reads from the same lane are usually together, so check the last prefix first
+	private final Map<String, String> readGroupIDsByPrefix = new HashMap<String, String>();
+	private String lastPrefix = null;
+	private String lastReadGroupID = null;
+	
+	public AssignReadGroups(String sampleID, String label, Date date, String library, String sequencingCenter, String sequencingPlatform, boolean lenient) {
+		this.sampleID = sampleID;
+		this.label = label;
+		this.date = date;
+		this.library = library;
+		this.sequencingCenter = sequencingCenter;
+		this.sequencingPlatform = sequencingPlatform;
+		this.lenient = lenient;
+		this.dateString = dateFormat.get().format(date);
+	}
 	
 	public static void main(String [] args) throws ParseException, IOException, java.text.ParseException{
 		CommandLineParser parser = new DefaultParser();
@@ -52,6 +83,7 @@ public class AssignReadGroups {
 		options.addOption("q", "sequencing-center", true, "sequencing center producing read");
 		options.addOption("p", "sequencing-platform", true, "sequencing platform producing read");
 		options.addOption(null, "lenient", false, "skip reads with SAM format errors");
+		options.addOption(null, "single-pass", false, "read input once, writing alignments to a temporary file until all read groups are known");
 		
 		CommandLine commandLine	= parser.parse( options, args );
 		
@@ -61,106 +93,70 @@ public class AssignReadGroups {
 		boolean useBAM = commandLine.hasOption("BAM") || Driver.isBAMFilename(outputFilename);
 		String label = commandLine.getOptionValue("label", "");
 		String dateString = commandLine.getOptionValue("date");
-		Date date = dateFormat.parse(dateString);
+		Date date = dateFormat.get().parse(dateString);
 		String NULL = null;
 		String library = commandLine.getOptionValue("library", NULL);
 		String sequencingCenter = commandLine.getOptionValue("sequencing-center", NULL);
 		String sequencingPlatform = commandLine.getOptionValue("sequencing-platform", "ILLUMINA");
 		boolean lenient = commandLine.hasOption("lenient");
 		
-		SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
-		// key format is platform unit: flowcellID.lane
-		// this will be unique because flowcell IDs are unique
-		Map<String, SAMReadGroupRecord> readGroups = new HashMap<String, SAMReadGroupRecord>();
-		
-		// make two passes through the file
-		// on first pass, discover which read groups we need
-		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(filename)));
+		AssignReadGroups assigner = new AssignReadGroups(sampleID, label, date, library, sequencingCenter, sequencingPlatform, lenient);
+		if(commandLine.hasOption("single-pass"))
+			assigner.assignSinglePass(filename, outputFilename, useBAM);
+		else
+			assigner.assignTwoPass(filename, outputFilename, useBAM);
+	}
+	
+	/**
+	 * Make two passes through the file. 
+	 * On the first pass, discover which read groups we need. 
+	 * On the second pass, write to file with read groups. 
+	 */
+	public void assignTwoPass(String filename, String outputFilename, boolean useBAM) throws IOException {
 		SAMFileHeader header;
-		try(
-				SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
-		){
-			header = reader.getFileHeader();
-			SAMRecordIterator i = reader.iterator();
-			while(i.hasNext()){
-				try {
-					SAMRecord record = i.next();
-					String readName = record.getReadName();
-					// parse read group information from read name
-					String[] fields = readName.split(":");
-
-					String instrument = fields[0];
-					int runNumber = Integer.valueOf(fields[1]);
-					String flowcellID = fields[2];
-					int lane = Integer.valueOf(fields[3]);
-
-					// generate a read group, if there is not one present already
-					// use shortened platform unit
-					String platformUnit = String.format("%s.%d", flowcellID, lane);
-					if(!readGroups.containsKey(platformUnit)){
-						// combine with label and data
-						String readGroupID = assembleReadGroupID(label, date, flowcellID, lane);
-
-						SAMReadGroupRecord group = new SAMReadGroupRecord(readGroupID);
-						if(sequencingCenter != null)
-							group.setSequencingCenter(sequencingCenter);
-						group.setRunDate(date);
-						if(library != null)
-							group.setLibrary(library);
-						group.setPlatform(sequencingPlatform);
-						group.setPlatformModel(String.format("%s %d", instrument, runNumber));
-						group.setPlatformUnit(platformUnit);
-						group.setSample(sampleID);
-
-						readGroups.put(platformUnit, group);
-					}
-				} catch(SAMFormatException e){
-					if(lenient) {
-						System.err.println(e);
-					} else {
-						throw e;
+		SamInputResource bufferedSAMFile;
+		// the first pass needs only read names
+		// lenient mode skips records that htsjdk cannot decode, so it needs full decoding
+		if(!lenient && RawBAMReader.isBAM(new File(filename))) {
+			try(RawBAMReader reader = new RawBAMReader(new File(filename))){
+				header = reader.getFileHeader();
+				while(reader.next()) {
+					addReadGroup(reader.getReadName());
+				}
+			}
+		} else {
+			bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(filename)));
+			try(
+					SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
+			){
+				header = reader.getFileHeader();
+				SAMRecordIterator i = reader.iterator();
+				while(i.hasNext()){
+					try {
+						SAMRecord record = i.next();
+						addReadGroup(record.getReadName());
+					} catch(SAMFormatException e){
+						if(lenient) {
+							System.err.println(e);
+						} else {
+							throw e;
+						}
 					}
 				}
 			}
 		}
-		// on second pass, write to file with read groups
 		// first, add read groups to header
-		for(SAMReadGroupRecord readGroup : readGroups.values() ){
-			header.addReadGroup(readGroup);
-		}
+		addReadGroupsToHeader(header);
 		bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(filename)));
 		try(
 				SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
 		){
-			SAMFileWriter output;
-			BufferedOutputStream outputFile = new BufferedOutputStream(new FileOutputStream(outputFilename));
-			if(useBAM){
-				output = outputFileFactory.makeBAMWriter(header, false, outputFile);
-			} else {
-				output = outputFileFactory.makeSAMWriter(header, false, outputFile);
-			}
-			
+			SAMFileWriter output = makeWriter(header, outputFilename, useBAM);
 			SAMRecordIterator i = reader.iterator();
 			while(i.hasNext()){
 				try {
 					SAMRecord record = i.next();
-					// shorten read names by removing info common to read group (instrument, runNumber, flowcellID, lane)
-					String readName = record.getReadName();
-					// parse read group information from read name
-					String[] fields = readName.split(":");
-
-					String flowcellID = fields[2];
-					int lane = Integer.valueOf(fields[3]);
-					int tile = Integer.valueOf(fields[4]);
-					int x = Integer.valueOf(fields[5]);
-					int y = Integer.valueOf(fields[6]);
-
-					String shortenedReadName = String.format("%d:%d:%d", tile, x, y);
-					record.setReadName(shortenedReadName);
-
-					// set read group
-					String readGroupID = assembleReadGroupID(label, date, flowcellID, lane);
-					record.setAttribute(SAMTag.RG.toString(), readGroupID);
+					assignReadGroup(record);
 					// write to file with read group
 					output.addAlignment(record);
 				} catch(SAMFormatException e){
@@ -175,8 +171,217 @@ public class AssignReadGroups {
 		}
 	}
 	
-	public static String assembleReadGroupID(String label, Date date, String flowcellID, int lane) {
-		String readGroupID = String.format("%s_%s_%s_%d", label, dateFormat.format(date), flowcellID, lane);
+	/**
+	 * Read the input once. Alignments with read groups are written to a temporary BAM body with no header. 
+	 * Once all read groups are known, the output is the final header followed by the temporary body. 
+	 * For BAM output, the compressed body is copied without decoding the alignments again. 
+	 */
+	public void assignSinglePass(String filename, String outputFilename, boolean useBAM) throws IOException {
+		File outputDirectory = new File(outputFilename).getAbsoluteFile().getParentFile();
+		File body = File.createTempFile("assignreadgroups", ".body", outputDirectory);
+		try {
+			SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(filename)));
+			SAMFileHeader header;
+			try(
+					SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
+					BAMBody.Writer bodyWriter = new BAMBody.Writer(body, reader.getFileHeader());
+			){
+				header = reader.getFileHeader();
+				SAMRecordIterator i = reader.iterator();
+				while(i.hasNext()){
+					try {
+						SAMRecord record = i.next();
+						addReadGroup(record.getReadName());
+						assignReadGroup(record);
+						bodyWriter.addAlignment(record);
+					} catch(SAMFormatException e){
+						if(lenient) {
+							System.err.println(e);
+						} else {
+							throw e;
+						}
+					}
+				}
+			}
+			addReadGroupsToHeader(header);
+			if(useBAM) {
+				try(OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFilename))){
+					BAMBody.writeWithHeader(header, body, output);
+				}
+			} else {
+				SAMFileWriter output = makeWriter(header, outputFilename, useBAM);
+				try(BAMBody.Reader bodyReader = new BAMBody.Reader(body, header)){
+					SAMRecord record;
+					while((record = bodyReader.next()) != null) {
+						output.addAlignment(record);
+					}
+				}
+				output.close();
+			}
+		} finally {
+			body.delete();
+		}
+	}
+	
+	private static SAMFileWriter makeWriter(SAMFileHeader header, String outputFilename, boolean useBAM) throws IOException {
+		SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
+		SAMFileWriter output;
+		BufferedOutputStream outputFile = new BufferedOutputStream(new FileOutputStream(outputFilename));
+		if(useBAM){
+			output = outputFileFactory.makeBAMWriter(header, false, outputFile);
+		} else {
+			output = outputFileFactory.makeSAMWriter(header, false, outputFile);
+		}
+		return output;
+	}
+	
+	private void addReadGroupsToHeader(SAMFileHeader header) {
+		for(SAMReadGroupRecord readGroup : readGroups.values() ){
+			header.addReadGroup(readGroup);
+		}
+	}
+	
+	/**
+	 * Generate a read group for this read's flowcell and lane, if there is not one present already
+	 * @param readName Illumina read name
+	 */
+	private void addReadGroup(String readName) {
+		readGroupID(readName);
+	}
+	
+	/**
+	 * Find the read group ID for this read's flowcell and lane, generating the read group if necessary. 
+	 * Read names are parsed only the first time their prefix is seen. 
+	 * @param readName Illumina read name
+	 * @return read group ID
+	 */
+	private String readGroupID(String readName) {
+		if(lastPrefix != null && readName.startsWith(lastPrefix))
+			return lastReadGroupID;
+		int laneEnd = fieldEnd(readName, 3);
+		// a name ending after the lane has no prefix that can be matched safely
+		String prefix = laneEnd < readName.length() ? readName.substring(0, laneEnd + 1) : null;
+		String readGroupID = prefix != null ? readGroupIDsByPrefix.get(prefix) : null;
+		if(readGroupID == null) {
+			// parse read group information from read name
+			String[] fields = readName.split(":");
+
+			String instrument = fields[0];
+			int runNumber = Integer.valueOf(fields[1]);
+			String flowcellID = fields[2];
+			int lane = Integer.valueOf(fields[3]);
+
+			// generate a read group, if there is not one present already
+			// use shortened platform unit
+			String platformUnit = flowcellID + "." + lane;
+			// combine with label and data
+			readGroupID = assembleReadGroupID(label, dateString, flowcellID, lane);
+			if(!readGroups.containsKey(platformUnit)){
+				SAMReadGroupRecord group = new SAMReadGroupRecord(readGroupID);
+				if(sequencingCenter != null)
+					group.setSequencingCenter(sequencingCenter);
+				group.setRunDate(date);
+				if(library != null)
+					group.setLibrary(library);
+				group.setPlatform(sequencingPlatform);
+				group.setPlatformModel(instrument + " " + runNumber);
+				group.setPlatformUnit(platformUnit);
+				group.setSample(sampleID);
+
+				readGroups.put(platformUnit, group);
+			}
+			if(prefix != null)
+				readGroupIDsByPrefix.put(prefix, readGroupID);
+		}
+		if(prefix != null) {
+			lastPrefix = prefix;
+			lastReadGroupID = readGroupID;
+		}
 		return readGroupID;
 	}
+	
+	/**
+	 * Shorten the read name and set the read group
+	 * @param record
+	 */
+	private void assignReadGroup(SAMRecord record) {
+		// shorten read names by removing info common to read group (instrument, runNumber, flowcellID, lane)
+		String readName = record.getReadName();
+		String readGroupID = readGroupID(readName);
+		record.setReadName(shortenedReadName(readName));
+		// set read group
+		record.setAttribute(SAMTag.RG.toString(), readGroupID);
+	}
+	
+	/**
+	 * @param readName Illumina read name
+	 * @return tile:x:y, with numbers in canonical form
+	 */
+	static String shortenedReadName(String readName) {
+		int tileStart = fieldEnd(readName, 3) + 1;
+		int xStart = fieldEnd(readName, tileStart, 1) + 1;
+		int yStart = fieldEnd(readName, xStart, 1) + 1;
+		int yEnd = fieldEnd(readName, yStart, 1);
+		if(yStart > readName.length())
+			throw new ArrayIndexOutOfBoundsException("Read name has too few fields: " + readName);
+		StringBuilder builder = new StringBuilder(yEnd - tileStart);
+		builder.append(parseInt(readName, tileStart, xStart - 1)).append(':');
+		builder.append(parseInt(readName, xStart, yStart - 1)).append(':');
+		builder.append(parseInt(readName, yStart, yEnd));
+		return builder.toString();
+	}
+	
+	/**
+	 * @return index of the colon ending the field, or the name length for the last field
+	 */
+	private static int fieldEnd(String readName, int field) {
+		return fieldEnd(readName, 0, field + 1);
+	}
+	
+	private static int fieldEnd(String readName, int start, int fields) {
+		int position = start - 1;
+		for(int n = 0; n < fields && position < readName.length(); n++) {
+			position = readName.indexOf(':', position + 1);
+			if(position < 0)
+				position = readName.length();
+		}
+		return position;
+	}
+	
+	/**
+	 * Parse a decimal integer without allocating a substring, accepting what Integer.valueOf accepts
+	 */
+	private static int parseInt(String s, int start, int end) {
+		if(start >= end)
+			throw new NumberFormatException("Empty number in: " + s);
+		boolean negative = false;
+		int position = start;
+		char first = s.charAt(position);
+		if(first == '-' || first == '+') {
+			negative = first == '-';
+			position++;
+			if(position == end)
+				throw new NumberFormatException("For input string: " + s.substring(start, end));
+		}
+		long value = 0;
+		for(; position < end; position++) {
+			int digit = Character.digit(s.charAt(position), 10);
+			if(digit < 0)
+				throw new NumberFormatException("For input string: " + s.substring(start, end));
+			value = value * 10 + digit;
+			if(value > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE))
+				throw new NumberFormatException("For input string: " + s.substring(start, end));
+		}
+		return (int) (negative ? -value : value);
+	}
+	
+	public static String assembleReadGroupID(String label, Date date, String flowcellID, int lane) {
+		return assembleReadGroupID(label, dateFormat.get().format(date), flowcellID, lane);
+	}
+	
+	private static String assembleReadGroupID(String label, String dateString, String flowcellID, int lane) {
+		StringBuilder builder = new StringBuilder(label.length() + dateString.length() + flowcellID.length() + 8);
+		builder.append(label).append('_').append(dateString).append('_').append(flowcellID).append('_').append(lane);
+		return builder.toString();
+	}
 }
@@ -0,0 +1,168 @@
+package adnascreen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * A BAM body is the BGZF compressed alignment records of a BAM file, with no header and no end of file block.
+ * A body can be written before the final header is known. BGZF blocks can be concatenated,
+ * so the BAM file is the header blocks followed by a copy of the compressed body.
+ *
+ */
+public class BAMBody {
+	public static final byte[] BAM_MAGIC = "BAM\1".getBytes(StandardCharsets.US_ASCII);
+
+	public static class Writer implements Closeable {
+		private final BlockCompressedOutputStream stream;
+		private final BAMRecordCodec codec;
+
+		/**
+		 * @param body file for body
+		 * @param header header for encoding reference indices
+		 * @throws IOException
+		 */
+		public Writer(File body, SAMFileHeader header) throws IOException {
+			stream = new BlockCompressedOutputStream(new FileOutputStream(body), (Path) null);
+			codec = new BAMRecordCodec(header);
+			codec.setOutputStream(stream, body.getPath());
+		}
+
+		public void addAlignment(SAMRecord record) {
+			codec.encode(record);
+		}
+
+		@Override
+		public void close() throws IOException {
+			stream.close(false);
+		}
+	}
+
+	public static class Reader implements Closeable {
+		private final BlockCompressedInputStream stream;
+		private final BAMRecordCodec codec;
+
+		public Reader(File body, SAMFileHeader header) throws IOException {
+			stream = new BlockCompressedInputStream(body);
+			codec = new BAMRecordCodec(header);
+			codec.setInputStream(stream, body.getPath());
+		}
+
+		/**
+		 * @return next record, or null at end of body
+		 */
+		public SAMRecord next() {
+			return codec.decode();
+		}
+
+		@Override
+		public void close() throws IOException {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Write a complete BAM file: header, body, and end of file block
+	 * @param header final header
+	 * @param body file written by a Writer
+	 * @param output stream for BAM file, which remains open
+	 * @throws IOException
+	 */
+	public static void writeWithHeader(SAMFileHeader header, File body, OutputStream output) throws IOException {
+		writeHeaderBlocks(output, header, BlockCompressedOutputStream.getDefaultCompressionLevel());
+		Files.copy(body.toPath(), output);
+		output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		output.flush();
+	}
+
+	/**
+	 * Write the BAM header in its own BGZF blocks, so alignment blocks can follow
+	 * @param output stream for BAM file, which remains open
+	 * @param header
+	 * @param compressionLevel
+	 * @throws IOException
+	 */
+	public static void writeHeaderBlocks(OutputStream output, SAMFileHeader header, int compressionLevel) throws IOException {
+		BlockCompressedOutputStream headerStream = new BlockCompressedOutputStream(new UnclosedOutputStream(output), (Path) null, compressionLevel);
+		writeHeader(headerStream, header);
+		headerStream.close(false);
+	}
+
+	/**
+	 * Encode and compress alignments into BGZF blocks that do not depend on any other blocks. 
+	 * Batches can be compressed concurrently, then concatenated in order after the header blocks. 
+	 * @param records
+	 * @param header header for encoding reference indices
+	 * @param compressionLevel
+	 * @return compressed blocks, with no end of file block
+	 */
+	public static byte[] compress(List<SAMRecord> records, SAMFileHeader header, int compressionLevel) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BlockCompressedOutputStream stream = new BlockCompressedOutputStream(bytes, (Path) null, compressionLevel);
+		BAMRecordCodec codec = new BAMRecordCodec(header);
+		codec.setOutputStream(stream);
+		for(SAMRecord record : records) {
+			codec.encode(record);
+		}
+		stream.close(false);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write the uncompressed BAM header: magic, header text, and reference sequences
+	 * @param output
+	 * @param header
+	 */
+	public static void writeHeader(OutputStream output, SAMFileHeader header) {
+		BinaryCodec codec = new BinaryCodec(output);
+		codec.writeBytes(BAM_MAGIC);
+		StringWriter headerText = new StringWriter();
+		new SAMTextHeaderCodec().encode(headerText, header);
+		codec.writeString(headerText.toString(), true, false);
+		SAMSequenceDictionary dictionary = header.getSequenceDictionary();
+		codec.writeInt(dictionary.size());
+		for(SAMSequenceRecord sequence : dictionary.getSequences()) {
+			codec.writeString(sequence.getSequenceName(), true, true);
+			codec.writeInt(sequence.getSequenceLength());
+		}
+	}
+
+	/**
+	 * Output stream that flushes instead of closing, so more can be written to the underlying stream
+	 */
+	static class UnclosedOutputStream extends FilterOutputStream {
+		UnclosedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+}
@@ -2,9 +2,11 @@ package adnascreen;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -20,6 +22,7 @@ import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 
 public class BarcodeMover {
 	public static void main(String [] args) throws ParseException, IOException {
@@ -39,6 +42,11 @@ public class BarcodeMover {
 		String inputFilename = commandLine.getOptionValue("input");
 		String outputFilename = commandLine.getOptionValue("output");
 		
+		if(RawBAMReader.isBAM(new File(inputFilename))) {
+			moveBarcodesRaw(inputFilename, outputFilename, bufferSize);
+			return;
+		}
+		
 		SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
 		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename), bufferSize));
 		try(
@@ -51,9 +59,33 @@ public class BarcodeMover {
 				// iterate through alignments
 				try{
 					SAMRecord record = i.next();
-					SAMRecord modified = barcodeToTag(record, tag);
+					moveBarcodeToTag(record, tag);
 					
-					output.addAlignment(modified);
+					output.addAlignment(record);
+				} catch (SAMFormatException e){
+					System.err.println(e);
+					// ignore this record and continue to the next
+				}
+			}
+		}
+	}
+	
+	/**
+	 * BAM to BAM, editing each raw record in place without decoding or re-encoding
+	 */
+	public static void moveBarcodesRaw(String inputFilename, String outputFilename, int bufferSize) throws IOException {
+		try(RawBAMReader reader = new RawBAMReader(new File(inputFilename));
+				BlockCompressedOutputStream output = new BlockCompressedOutputStream(
+						new BufferedOutputStream(new FileOutputStream(outputFilename), bufferSize), (Path) null);
+				){
+			BAMBody.writeHeader(output, reader.getFileHeader());
+			while(reader.next()) {
+				try {
+					String readName = reader.getReadName();
+					String barcodesString = concatenatedBarcodes(readName);
+					reader.setStringTag(DemultiplexSAM.duplicatesSAMTag, duplicatesTagContent(barcodesString, reader.getReadLength()));
+					reader.truncateReadName(readName.indexOf(":" + barcodesString));
+					reader.writeRecord(output);
 				} catch (SAMFormatException e){
 					System.err.println(e);
 					// ignore this record and continue to the next
@@ -66,12 +98,32 @@ public class BarcodeMover {
 	 * Heng's processing of shotgun data puts the barcodes into the query name
 	 * Move those barcodes into a SAM/BAM tag
 	 * @param hengRead
-	 * @return
+	 * @return modified copy of the read
 	 */
 	public static SAMRecord barcodeToTag(SAMRecord hengRead, String tag) {
 		SAMRecord modified = hengRead.deepCopy();
-		
+		moveBarcodeToTag(modified, tag);
+		return modified;
+	}
+	
+	/**
+	 * Move the barcodes in the read name into a SAM/BAM tag, modifying the read
+	 * @param hengRead
+	 * @param tag
+	 */
+	public static void moveBarcodeToTag(SAMRecord hengRead, String tag) {
 		String readName = hengRead.getReadName();
+		String barcodesString = concatenatedBarcodes(readName);
+		
+		hengRead.setAttribute(DemultiplexSAM.duplicatesSAMTag, duplicatesTagContent(barcodesString, hengRead.getReadLength()));
+		
+		// remove barcode from read name for space saving
+		int toRemoveIndex = readName.indexOf(":" + barcodesString);
+		String trimmedReadName = readName.substring(0, toRemoveIndex);
+		hengRead.setReadName(trimmedReadName);
+	}
+	
+	private static String concatenatedBarcodes(String readName) {
 		String [] fields = readName.split(":");
 		
 		// Last field should be a DNA sequence with an even number of bases (P5 and P7 barcodes concatenated)
@@ -79,27 +131,25 @@ public class BarcodeMover {
 		if (barcodesConcatenated.length() % 2 != 0) {
 			throw new IllegalArgumentException("DNA barcode length: " + barcodesConcatenated.length());
 		}
-		String barcodesString = barcodesConcatenated.toString();
-		int singleBarcodeLength = barcodesConcatenated.length() / 2;
+		return barcodesConcatenated.toString();
+	}
+	
+	/**
+	 * @param barcodesString P5 and P7 barcodes concatenated
+	 * @param readLength
+	 * @return duplicates tag with barcodes and length
+	 */
+	private static String duplicatesTagContent(String barcodesString, int readLength) {
+		int singleBarcodeLength = barcodesString.length() / 2;
 		String barcode1 = barcodesString.substring(0, singleBarcodeLength);
 		String barcode2 = barcodesString.substring(singleBarcodeLength);
 		
-		// write duplicates tag with barcodes and length
 		StringBuilder builder = new StringBuilder();
 		builder.append(barcode1);
 		builder.append(IndexAndBarcodeKey.FIELD_SEPARATOR);
 		builder.append(barcode2);
 		builder.append(IndexAndBarcodeKey.FIELD_SEPARATOR);
-		builder.append(hengRead.getReadLength());
-		String duplicatesTagContent = builder.toString();
-		
-		modified.setAttribute(DemultiplexSAM.duplicatesSAMTag, duplicatesTagContent);
-		
-		// remove barcode from read name for space saving
-		int toRemoveIndex = readName.indexOf(":" + barcodesString);
-		String trimmedReadName = readName.substring(0, toRemoveIndex);
-		modified.setReadName(trimmedReadName);
-		
-		return modified;
+		builder.append(readLength);
+		return builder.toString();
 	}
 }
@@ -5,8 +5,11 @@ import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -24,12 +27,11 @@ import htsjdk.samtools.SAMReadGroupRecord;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SAMValidationError;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.TextCigarCodec;
-import htsjdk.samtools.util.CigarUtil;
 
 /**
  * To prevent damaged bases from affecting downstream analysis, 
@@ -41,6 +43,8 @@ import htsjdk.samtools.util.CigarUtil;
 public class Clipping {
 	private int defaultNumberOfBasesToClip;
 	private HashMap<String, Integer> clippingLengthByLibrary;
+	// precomputed from the header's read groups, if available
+	private HashMap<String, Integer> clippingLengthByReadGroupID = null;
 	
 	/**
 	 * Parse command line options for clipping lengths based on library
@@ -68,12 +72,36 @@ public class Clipping {
 		}
 	}
 	
+	/**
+	 * Precompute clipping lengths for the read groups in the header, so each record 
+	 * needs only a lookup of its read group ID. Records must use this header. 
+	 * @param header
+	 */
+	public void setHeader(SAMFileHeader header) {
+		HashMap<String, Integer> byReadGroupID = new HashMap<String, Integer>();
+		for(SAMReadGroupRecord readGroup : header.getReadGroups()) {
+			int numberOfBasesToClip = defaultNumberOfBasesToClip;
+			String library = readGroup.getLibrary();
+			if(library != null) {
+				numberOfBasesToClip = clippingLengthByLibrary.getOrDefault(library, defaultNumberOfBasesToClip);
+			}
+			byReadGroupID.put(readGroup.getId(), numberOfBasesToClip);
+		}
+		clippingLengthByReadGroupID = byReadGroupID;
+	}
+	
 	/**
 	 * 
 	 * @param record
 	 * @return number of bases to clip on both ends based on library
 	 */
 	public int getClippingLength(SAMRecord record) {
+		if(clippingLengthByReadGroupID != null) {
+			Object readGroupID = record.getAttribute(SAMTag.RG);
+			if(readGroupID == null)
+				return defaultNumberOfBasesToClip;
+			return clippingLengthByReadGroupID.getOrDefault(readGroupID, defaultNumberOfBasesToClip);
+		}
 		int numberOfBasesToClip = defaultNumberOfBasesToClip;
 		// clipping length depends on library
 		SAMReadGroupRecord readGroup = record.getReadGroup();
@@ -109,13 +137,15 @@ public class Clipping {
 		return hasMatch && hasData;
 	}
 	
-	public static void main(String [] args) throws ParseException, IOException{
+	public static void main(String [] args) throws ParseException, IOException, InterruptedException, ExecutionException{
 		CommandLineParser parser = new DefaultParser();
 		Options options = new Options();
 		options.addRequiredOption("i", "input BAM", true, "Input BAM filename");
 		options.addRequiredOption("o", "output BAM", true, "Output BAM filename");
 		options.addOption("b", "BAM", false, "Use bam files for output");
 		options.addOption(null, "hard", false, "Hard clip bases. Use this for contammix, for example, which requires realignment");
+		options.addOption(null, "threads", true, "Number of threads for clipping; output order is unchanged");
+		options.addOption(null, "validationInterval", true, "Validate every nth output record for diagnostic prints; 0 to skip validation, default 1");
 		addSoftClipCommandLineOptions(options);
 		CommandLine commandLine	= parser.parse(options, args);
 		
@@ -123,6 +153,8 @@ public class Clipping {
 		String outputFilename = commandLine.getOptionValue('o');
 		boolean useBAM = commandLine.hasOption('b') || Driver.isBAMFilename(outputFilename);
 		boolean hardClip = commandLine.hasOption("hard");
+		int numThreads = Integer.valueOf(commandLine.getOptionValue("threads", "1"));
+		int validationInterval = Integer.valueOf(commandLine.getOptionValue("validationInterval", "1"));
 		
 		// clipping for command line specified libraries to handle separate UDG treatments 
 		Clipping softClipLengths = new Clipping(commandLine);
@@ -132,6 +164,7 @@ public class Clipping {
 				SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
 				){
 			SAMFileHeader header = reader.getFileHeader();
+			softClipLengths.setHeader(header);
 			
 			SAMFileWriter output;
 			SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
@@ -142,38 +175,93 @@ public class Clipping {
 				output = outputFileFactory.makeSAMWriter(header, false, outputFile);
 			}
 
-			SAMRecordIterator i = reader.iterator();
-			while(i.hasNext()){
-				// iterate through alignments
-				try{
-					SAMRecord record = i.next();
-					int numberOfBasesToClip = softClipLengths.getClippingLength(record);				
-					if(hardClip)
-						hardClipBothEndsOfRead(record, numberOfBasesToClip);
-					else
-						softClipBothEndsOfRead(record, numberOfBasesToClip);
-					
-					// very short reads may be entirely clipped, remove these from the data set
-					if(isNonEmptyRead(record)) {
-						output.addAlignment(record);
-						
-						// diagnostic prints for validation failures
-						List<SAMValidationError> errors = record.isValid();
-						if(errors != null) {
-							for(SAMValidationError error : errors) {
-								System.err.println(error.toString());
-							}
-							System.err.println(record.toString());
+			try {
+				if(numThreads > 1)
+					clipInParallel(reader, output, softClipLengths, hardClip, validationInterval, numThreads);
+				else {
+					SAMRecordIterator i = reader.iterator();
+					long recordNumber = 0;
+					while(i.hasNext()){
+						// iterate through alignments
+						try{
+							SAMRecord record = i.next();
+							if(softClipLengths.clipRecord(record, hardClip, recordNumber++, validationInterval))
+								output.addAlignment(record);
+						}
+						catch(Exception e){
+							System.err.println(e.toString());
 						}
 					}
 				}
-				catch(Exception e){
-					System.err.println(e.toString());
+			} finally {
+				output.close();
+			}
+		}
+	}
+	
+	/**
+	 * Clip a record using the clipping length for its library. 
+	 * @param record
+	 * @param hardClip
+	 * @param recordNumber position of record in input, for sampling validation
+	 * @param validationInterval validate records whose number is a multiple of this; 0 for no validation
+	 * @return true if the clipped record is nonempty and should be output
+	 */
+	boolean clipRecord(SAMRecord record, boolean hardClip, long recordNumber, int validationInterval) {
+		int numberOfBasesToClip = getClippingLength(record);
+		if(hardClip)
+			hardClipBothEndsOfRead(record, numberOfBasesToClip);
+		else
+			softClipBothEndsOfRead(record, numberOfBasesToClip);
+		
+		// very short reads may be entirely clipped, remove these from the data set
+		if(isNonEmptyRead(record)) {
+			// diagnostic prints for validation failures
+			if(validationInterval > 0 && recordNumber % validationInterval == 0) {
+				List<SAMValidationError> errors = record.isValid();
+				if(errors != null) {
+					for(SAMValidationError error : errors) {
+						System.err.println(error.toString());
+					}
+					System.err.println(record.toString());
 				}
 			}
-			
-			output.close();
+			return true;
 		}
+		return false;
+	}
+	
+	/**
+	 * Worker threads clip batches of records, and the calling thread writes clipped batches in input order. 
+	 */
+	private static void clipInParallel(SamReader reader, SAMFileWriter output, Clipping clipping, boolean hardClip, int validationInterval, int numThreads) throws IOException, InterruptedException, ExecutionException {
+		OrderedBatches.run(reader.iterator(), numThreads,
+				(batch, batchStart) -> clipBatch(batch, batchStart, clipping, hardClip, validationInterval),
+				clipped -> {
+					for(SAMRecord record : clipped) {
+						try{
+							output.addAlignment(record);
+						}
+						catch(Exception e){
+							System.err.println(e.toString());
+						}
+					}
+				});
+	}
+	
+	private static List<SAMRecord> clipBatch(List<SAMRecord> batch, long batchStart, Clipping clipping, boolean hardClip, int validationInterval){
+		List<SAMRecord> clipped = new ArrayList<SAMRecord>(batch.size());
+		long recordNumber = batchStart;
+		for(SAMRecord record : batch) {
+			try{
+				if(clipping.clipRecord(record, hardClip, recordNumber++, validationInterval))
+					clipped.add(record);
+			}
+			catch(Exception e){
+				System.err.println(e.toString());
+			}
+		}
+		return clipped;
 	}
 	
 	/**
@@ -221,89 +309,25 @@ public class Clipping {
 		
 	public static void clipBothEndsOfRead(SAMRecord record, int numberOfBasesToClip, boolean hardClip){
 		int startingAlignmentPosition = record.getAlignmentStart();
-		Cigar startingCigar = record.getCigar();
-		char [] cigarUnrolled = CigarUtil.cigarArrayFromElements(startingCigar.getCigarElements() );
-		numberOfBasesToClip = Math.min(numberOfBasesToClip, cigarUnrolled.length);
-		
-		CigarOperator replacementCigarOperator = hardClip ? CigarOperator.HARD_CLIP : CigarOperator.SOFT_CLIP;
+		ClippedCigar cigar = new ClippedCigar(record.getCigar());
+		numberOfBasesToClip = Math.min(numberOfBasesToClip, cigar.length());
 		
-		int alignmentStartOffset = 0; // number of bases to move alignment start, and amount to change MD field
-		int endSideChange = 0; // modifies MD only
+		// number of bases to move alignment start, and amount to change MD field
+		int alignmentStartOffset = cigar.clipStart(numberOfBasesToClip, hardClip);
+		int endSideChange = cigar.clipEnd(numberOfBasesToClip, hardClip); // modifies MD only
 		
-		int n = 0;
-		int clippedBases = 0;
-		int hardClipped = 0;
-		// clip bases from front
-		while(clippedBases < numberOfBasesToClip) {
-			CigarOperator startSide = CigarOperator.characterToEnum(cigarUnrolled[n]);
-			if(startSide.consumesReferenceBases()){
-				alignmentStartOffset++;
-			}
-			if(startSide.consumesReadBases()) {
-				cigarUnrolled[n] = (char) CigarOperator.enumToCharacter(replacementCigarOperator);
-				if (hardClip)
-					hardClipped++;
-				clippedBases++;
-			}
-			else if (!startSide.equals(CigarOperator.SOFT_CLIP)){
-				cigarUnrolled[n] = (char) CigarOperator.enumToCharacter(CigarOperator.HARD_CLIP);
-				hardClipped++;
-			}
-			n++;
-		}
-		// hard clipped bases must be before soft clipped bases
-		int totalClippedBases = n;
-		for(n = 0; n < totalClippedBases; n++) {
-			if(n < hardClipped)
-				cigarUnrolled[n] = (char) CigarOperator.enumToCharacter(CigarOperator.HARD_CLIP);
-			else
-				cigarUnrolled[n] = (char) CigarOperator.enumToCharacter(CigarOperator.SOFT_CLIP);
-		}
-		
-		// clip bases from rear
-		n = 0;
-		clippedBases = 0;
-		hardClipped = 0;
-		while(clippedBases < numberOfBasesToClip) {
-			CigarOperator endSide = CigarOperator.characterToEnum(cigarUnrolled[cigarUnrolled.length - n - 1]);
-			if(endSide.consumesReferenceBases()){
-				endSideChange++;
-			}
-			if(endSide.consumesReadBases()) {
-				cigarUnrolled[cigarUnrolled.length - n - 1] = (char) CigarOperator.enumToCharacter(replacementCigarOperator);
-				if (hardClip)
-					hardClipped++;
-				clippedBases++;
-			}
-			else {
-				cigarUnrolled[cigarUnrolled.length - n - 1] = (char) CigarOperator.enumToCharacter(CigarOperator.HARD_CLIP);
-				hardClipped++;
-			}
-			n++;
-		}
-		// hard clipped bases must be before soft clipped bases
-		totalClippedBases = n;
-		for(n = 0; n < totalClippedBases; n++) {
-			if(n < hardClipped)
-				cigarUnrolled[cigarUnrolled.length - n - 1] = (char) CigarOperator.enumToCharacter(CigarOperator.HARD_CLIP);
-			else
-				cigarUnrolled[cigarUnrolled.length - n - 1] = (char) CigarOperator.enumToCharacter(CigarOperator.SOFT_CLIP);
-		}
-		
-		// remove hard clipped query bases from the base and quality strings
+		// remove hard clipped query bases from the base and quality arrays
 		if(hardClip) {
-			String qualities = record.getBaseQualityString();
-			String shortenedQualities = qualities.substring(numberOfBasesToClip, qualities.length() - numberOfBasesToClip);
-			record.setBaseQualityString(shortenedQualities);
-			String bases = record.getReadString();
-			String shortenedBases = bases.substring(numberOfBasesToClip, bases.length() - numberOfBasesToClip);
-			record.setReadString(shortenedBases);
+			byte[] bases = record.getReadBases();
+			record.setReadBases(Arrays.copyOfRange(bases, numberOfBasesToClip, bases.length - numberOfBasesToClip));
+			byte[] qualities = record.getBaseQualities();
+			if(qualities.length > 0)
+				record.setBaseQualities(Arrays.copyOfRange(qualities, numberOfBasesToClip, qualities.length - numberOfBasesToClip));
 		}
 		
 		record.setAlignmentStart(startingAlignmentPosition + alignmentStartOffset);
-		String softClippedCigarString = CigarUtil.cigarStringFromArray(cigarUnrolled);
-		Cigar softClippedCigar = TextCigarCodec.decode(softClippedCigarString);
-		record.setCigar(softClippedCigar);
+		Cigar clippedCigar = cigar.toCigar();
+		record.setCigar(clippedCigar);
 		
 		// modify the MD field to match cigar
 		String mdString = (String) record.getAttribute("MD");
@@ -312,7 +336,163 @@ public class Clipping {
 		record.setAttribute("MD", md.toString());
 		
 		// modify NM edit distance field
-		int edit = editDistance(softClippedCigar, md);
+		int edit = editDistance(clippedCigar, md);
 		record.setAttribute("NM", edit);
 	}
+	
+	/**
+	 * Cigar operators and lengths with clipping applied at the element level. 
+	 * Each base position is treated the same as if the cigar were unrolled into one operator per position: 
+	 * read bases are clipped until the requested number is reached, 
+	 * and positions that do not consume read bases within the clipped region become hard clipped.
+	 * Hard clipped positions are placed outside soft clipped positions. 
+	 */
+	private static class ClippedCigar {
+		private final CigarOperator[] operators;
+		private final int[] lengths;
+		// elements in use are [begin, end)
+		private int begin;
+		private int end;
+		
+		ClippedCigar(Cigar cigar){
+			List<CigarElement> elements = cigar.getCigarElements();
+			// each end may gain a soft clip and a hard clip element
+			operators = new CigarOperator[elements.size() + 4];
+			lengths = new int[elements.size() + 4];
+			begin = 2;
+			end = begin;
+			for(CigarElement element : elements){
+				operators[end] = element.getOperator();
+				lengths[end] = element.getLength();
+				end++;
+			}
+		}
+		
+		/**
+		 * @return total length of all cigar operators
+		 */
+		int length(){
+			int length = 0;
+			for(int n = begin; n < end; n++){
+				length += lengths[n];
+			}
+			return length;
+		}
+		
+		/**
+		 * @return number of clipped positions that consume reference bases
+		 */
+		int clipStart(int numberOfBasesToClip, boolean hardClip){
+			int referenceClipped = 0;
+			int clippedBases = 0;
+			int hardClipped = 0;
+			int totalClipped = 0;
+			int n = begin;
+			while(clippedBases < numberOfBasesToClip){
+				if(n >= end)
+					throw new IllegalArgumentException("Cannot clip " + numberOfBasesToClip + " bases from cigar " + toCigar());
+				int clipped = clip(n, numberOfBasesToClip - clippedBases);
+				if(operators[n].consumesReadBases()){
+					clippedBases += clipped;
+					if(hardClip)
+						hardClipped += clipped;
+				}
+				else
+					hardClipped += clipped;
+				if(operators[n].consumesReferenceBases())
+					referenceClipped += clipped;
+				totalClipped += clipped;
+				if(lengths[n] == 0)
+					n++;
+			}
+			begin = n;
+			// hard clipped bases must be before soft clipped bases
+			if(totalClipped > hardClipped){
+				begin--;
+				operators[begin] = CigarOperator.SOFT_CLIP;
+				lengths[begin] = totalClipped - hardClipped;
+			}
+			if(hardClipped > 0){
+				begin--;
+				operators[begin] = CigarOperator.HARD_CLIP;
+				lengths[begin] = hardClipped;
+			}
+			return referenceClipped;
+		}
+		
+		/**
+		 * @return number of clipped positions that consume reference bases
+		 */
+		int clipEnd(int numberOfBasesToClip, boolean hardClip){
+			int referenceClipped = 0;
+			int clippedBases = 0;
+			int hardClipped = 0;
+			int totalClipped = 0;
+			int n = end - 1;
+			while(clippedBases < numberOfBasesToClip){
+				if(n < begin)
+					throw new IllegalArgumentException("Cannot clip " + numberOfBasesToClip + " bases from cigar " + toCigar());
+				int clipped = clip(n, numberOfBasesToClip - clippedBases);
+				if(operators[n].consumesReadBases()){
+					clippedBases += clipped;
+					if(hardClip)
+						hardClipped += clipped;
+				}
+				else
+					hardClipped += clipped;
+				if(operators[n].consumesReferenceBases())
+					referenceClipped += clipped;
+				totalClipped += clipped;
+				if(lengths[n] == 0)
+					n--;
+			}
+			end = n + 1;
+			// hard clipped bases must be after soft clipped bases
+			if(totalClipped > hardClipped){
+				operators[end] = CigarOperator.SOFT_CLIP;
+				lengths[end] = totalClipped - hardClipped;
+				end++;
+			}
+			if(hardClipped > 0){
+				operators[end] = CigarOperator.HARD_CLIP;
+				lengths[end] = hardClipped;
+				end++;
+			}
+			return referenceClipped;
+		}
+		
+		/**
+		 * Remove positions from element n. Operators that consume read bases are clipped 
+		 * until the remaining number of read bases is reached. Other operators are removed entirely. 
+		 * @return number of positions removed
+		 */
+		private int clip(int n, int remainingReadBases){
+			int clipped = operators[n].consumesReadBases() ? Math.min(lengths[n], remainingReadBases) : lengths[n];
+			lengths[n] -= clipped;
+			return clipped;
+		}
+		
+		/**
+		 * @return cigar with adjacent elements with the same operator combined
+		 */
+		Cigar toCigar(){
+			List<CigarElement> elements = new ArrayList<CigarElement>(end - begin);
+			CigarOperator currentOperator = null;
+			int currentLength = 0;
+			for(int n = begin; n < end; n++){
+				if(lengths[n] == 0)
+					continue;
+				if(operators[n] != currentOperator){
+					if(currentLength > 0)
+						elements.add(new CigarElement(currentLength, currentOperator));
+					currentOperator = operators[n];
+					currentLength = 0;
+				}
+				currentLength += lengths[n];
+			}
+			if(currentLength > 0)
+				elements.add(new CigarElement(currentLength, currentOperator));
+			return new Cigar(elements);
+		}
+	}
 }
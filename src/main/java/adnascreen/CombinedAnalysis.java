@@ -0,0 +1,278 @@
+package adnascreen;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.json.JSONObject;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.cram.ref.ReferenceSource;
+
+/**
+ * Decode a library BAM once and pass each alignment to the analyses requested.
+ * Each output matches the output of the corresponding standalone program:
+ * SAMStats (target counts and length histogram), DuplicatesHistogram,
+ * DamageRestrict, and FilterSAM.
+ *
+ */
+public class CombinedAnalysis {
+	public static void main(String [] args) throws ParseException, IOException {
+		CommandLineParser parser = new DefaultParser();
+		Options options = new Options();
+		options.addRequiredOption("i", "input", true, "Input SAM/BAM/CRAM filename");
+		options.addOption("r", "reference", true, "CRAM reference, required if input or damage output is CRAM");
+		// SAMStats
+		options.addOption(null, "targets", true, "SAMStats: JSON object for targets: key is label, value is reference name or array of reference names");
+		options.addOption(null, "stats", true, "SAMStats: output filename for target counts [stdout]");
+		options.addOption(null, "length-histogram", true, "SAMStats: output filename for length distribution histogram");
+		options.addOption(null, "mapping-quality", true, "SAMStats: minimum Phred score mapping quality");
+		// DuplicatesHistogram
+		options.addOption(null, "duplicates-histogram", true, "DuplicatesHistogram: output filename");
+		// DamageRestrict
+		options.addOption(null, "damage-output", true, "DamageRestrict: SAM/BAM/CRAM filtered for damage score");
+		options.addOption(null, "damage", true, "DamageRestrict: damage threshold > for retaining read");
+		options.addOption(null, "damage-tag", true, "DamageRestrict: SAM tag to use, default: 'ds'");
+		options.addOption(null, "compression", true, "DamageRestrict: HTSJDK compression parameter for BAM/CRAM: 0=none, 9=max, default 5");
+		// FilterSAM
+		options.addOption(null, "filter-output", true, "FilterSAM: output filename");
+		options.addOption(null, "positions", true, "FilterSAM: positions file in BED format");
+		options.addOption(null, "minimum_mapping_quality", true, "FilterSAM: minimum mapping quality");
+		options.addOption(null, "minimum_base_quality", true, "FilterSAM: minimum base quality");
+		Clipping.addSoftClipCommandLineOptions(options);
+		CommandLine commandLine	= parser.parse(options, args);
+
+		String inputFilename = commandLine.getOptionValue("input");
+		String reference = commandLine.getOptionValue("reference");
+
+		SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault();
+		if(reference != null)
+			samReaderFactory.referenceSource(new ReferenceSource(Paths.get(reference)));
+		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename)));
+		List<AlignmentConsumer> consumers = new ArrayList<AlignmentConsumer>();
+		try(
+				SamReader reader = samReaderFactory.open(bufferedSAMFile);
+				){
+			SAMFileHeader header = reader.getFileHeader();
+
+			if(commandLine.hasOption("targets")){
+				String keyString = ReadMarkDuplicatesStatistics.keyFromFilename(inputFilename);
+				JSONObject targets = new JSONObject(commandLine.getOptionValue("targets"));
+				int minimumMappingQuality = Integer.valueOf(commandLine.getOptionValue("mapping-quality", "0"));
+				consumers.add(new TargetStatistics(keyString, targets, header, minimumMappingQuality,
+						commandLine.getOptionValue("stats"), commandLine.getOptionValue("length-histogram")));
+			}
+			if(commandLine.hasOption("duplicates-histogram")){
+				consumers.add(new DuplicatesHistogramConsumer(commandLine.getOptionValue("duplicates-histogram")));
+			}
+			if(commandLine.hasOption("damage-output")){
+				String damageOutputFilename = commandLine.getOptionValue("damage-output");
+				if(AlignmentComparison.isCramFilename(damageOutputFilename) && reference == null)
+					throw new RuntimeException("Missing CRAM reference file");
+				float damageThreshold = Float.valueOf(commandLine.getOptionValue("damage"));
+				String damageTag = commandLine.getOptionValue("damage-tag", "ds");
+				int compression = Integer.valueOf(commandLine.getOptionValue("compression", "5"));
+				SAMFileWriter output = DamageRestrict.makeWriter(header, damageOutputFilename, reference, compression);
+				consumers.add(new DamageFilter(output, damageTag, damageThreshold));
+			}
+			if(commandLine.hasOption("filter-output")){
+				String filterOutputFilename = commandLine.getOptionValue("filter-output");
+				FilterSAM filter = new FilterSAM(commandLine.getOptionValue("positions"));
+				int minimumMappingQuality = Integer.valueOf(commandLine.getOptionValue("minimum_mapping_quality"));
+				int minimumBaseQuality = Integer.valueOf(commandLine.getOptionValue("minimum_base_quality"));
+				Clipping softClipLengths = new Clipping(commandLine);
+				softClipLengths.setHeader(header);
+				SAMFileWriter output = FilterSAM.makeWriter(header, filterOutputFilename, Driver.isBAMFilename(filterOutputFilename));
+				consumers.add(new TargetFilter(output, filter, softClipLengths, minimumMappingQuality, minimumBaseQuality));
+			}
+
+			SAMRecordIterator i = reader.iterator();
+			while(i.hasNext()){
+				SAMRecord record;
+				try{
+					record = i.next();
+				} catch (SAMFormatException e){
+					System.err.println(e);
+					// ignore this record and continue to the next
+					continue;
+				}
+				for(AlignmentConsumer consumer : consumers){
+					try{
+						consumer.accept(record);
+					} catch(Exception e){
+						System.err.println(e.toString());
+					}
+				}
+			}
+		}
+		finally {
+			closeAll(consumers);
+		}
+	}
+
+	/**
+	 * Close every consumer, so each output file is written even if closing an earlier consumer fails
+	 * @param consumers
+	 * @throws IOException the first exception from closing, with later exceptions suppressed
+	 */
+	static void closeAll(List<AlignmentConsumer> consumers) throws IOException {
+		Exception first = null;
+		for(AlignmentConsumer consumer : consumers){
+			try{
+				consumer.close();
+			} catch(IOException | RuntimeException e){
+				if(first == null)
+					first = e;
+				else
+					first.addSuppressed(e);
+			}
+		}
+		if(first instanceof IOException)
+			throw (IOException) first;
+		if(first != null)
+			throw (RuntimeException) first;
+	}
+
+	/**
+	 * SAMStats target counts and length histogram
+	 */
+	public static class TargetStatistics implements AlignmentConsumer {
+		private final String keyString;
+		private final SAMStats stats;
+		private final String statsFilename;
+		private final String histogramFilename;
+
+		public TargetStatistics(String keyString, JSONObject targets, SAMFileHeader header, int minimumMappingQuality, String statsFilename, String histogramFilename){
+			this.keyString = keyString;
+			this.stats = new SAMStats(targets, header.getSequenceDictionary(), minimumMappingQuality);
+			this.statsFilename = statsFilename;
+			this.histogramFilename = histogramFilename;
+		}
+
+		@Override
+		public void accept(SAMRecord record){
+			stats.add(record);
+		}
+
+		@Override
+		public void close() throws IOException {
+			stats.finishCounting(keyString);
+			if(statsFilename != null){
+				try(PrintStream out = new PrintStream(statsFilename)){
+					out.println(stats.toString());
+				}
+			} else {
+				System.out.println(stats.toString());
+			}
+			if(histogramFilename != null){
+				try(
+						FileWriter histogramFile = new FileWriter(histogramFilename);
+						PrintWriter w = new PrintWriter(histogramFile)
+						){
+					w.println(stats.lengthHistogramString());
+				}
+			}
+		}
+	}
+
+	public static class DuplicatesHistogramConsumer implements AlignmentConsumer {
+		private final DuplicatesHistogram histogram = new DuplicatesHistogram();
+		private final String outputFilename;
+
+		public DuplicatesHistogramConsumer(String outputFilename){
+			this.outputFilename = outputFilename;
+		}
+
+		@Override
+		public void accept(SAMRecord record){
+			histogram.add(record);
+		}
+
+		@Override
+		public void close() throws IOException {
+			histogram.finish();
+			try(PrintStream out = new PrintStream(outputFilename)){
+				histogram.print(out);
+			}
+		}
+	}
+
+	/**
+	 * DamageRestrict output of alignments above a damage score threshold
+	 */
+	public static class DamageFilter implements AlignmentConsumer {
+		private final SAMFileWriter output;
+		private final String damageTag;
+		private final float damageThreshold;
+
+		public DamageFilter(SAMFileWriter output, String damageTag, float damageThreshold){
+			this.output = output;
+			this.damageTag = damageTag;
+			this.damageThreshold = damageThreshold;
+		}
+
+		@Override
+		public void accept(SAMRecord record){
+			if(DamageRestrict.passesDamageThreshold(record, damageTag, damageThreshold)){
+				output.addAlignment(record);
+			}
+		}
+
+		@Override
+		public void close(){
+			output.close();
+		}
+	}
+
+	/**
+	 * FilterSAM output of soft clipped alignments with sufficient quality at target positions
+	 */
+	public static class TargetFilter implements AlignmentConsumer {
+		private final SAMFileWriter output;
+		private final FilterSAM filter;
+		private final Clipping softClipLengths;
+		private final int minimumMappingQuality;
+		private final int minimumBaseQuality;
+
+		public TargetFilter(SAMFileWriter output, FilterSAM filter, Clipping softClipLengths, int minimumMappingQuality, int minimumBaseQuality){
+			this.output = output;
+			this.filter = filter;
+			this.softClipLengths = softClipLengths;
+			this.minimumMappingQuality = minimumMappingQuality;
+			this.minimumBaseQuality = minimumBaseQuality;
+		}
+
+		@Override
+		public void accept(SAMRecord record){
+			// clipping modifies the record, which other consumers also see
+			boolean clipped = !record.getReadUnmappedFlag() && softClipLengths.getClippingLength(record) > 0;
+			SAMRecord toFilter = clipped ? record.deepCopy() : record;
+			if(filter.clipAndFilter(toFilter, softClipLengths, minimumMappingQuality, minimumBaseQuality)){
+				output.addAlignment(toFilter);
+			}
+		}
+
+		@Override
+		public void close(){
+			output.close();
+		}
+	}
+}
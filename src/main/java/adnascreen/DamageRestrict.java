@@ -2,11 +2,16 @@ package adnascreen;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -18,6 +23,7 @@ import org.apache.commons.cli.ParseException;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
@@ -25,9 +31,24 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.cram.ref.CRAMReferenceSource;
 import htsjdk.samtools.cram.ref.ReferenceSource;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 
 public class DamageRestrict {
-	public static int main(String[] args) throws IOException{
+	/**
+	 * Filtered records of one batch, or for BAM output, the batch compressed into BGZF blocks
+	 */
+	private static class FilteredBatch {
+		final List<SAMRecord> records;
+		final byte[] compressed;
+		
+		FilteredBatch(List<SAMRecord> records, byte[] compressed) {
+			this.records = records;
+			this.compressed = compressed;
+		}
+	}
+	
+	public static int main(String[] args) throws IOException, InterruptedException, ExecutionException{
 		CommandLineParser parser = new DefaultParser();
 		
 		Options options = new Options();
@@ -37,6 +58,7 @@ public class DamageRestrict {
 		options.addOption("r", "reference", true, "CRAM reference: if any cram files are used, the reference must be specified and the same for all CRAM files.");
 		options.addOption("t", "tag", true, "SAM tag to use, default: 'ds'");
 		options.addOption("c", "compression", true, "HTSJDK compression parameter for BAM/CRAM: 0=none, 9=max, default 5");
+		options.addOption("n", "threads", true, "Number of threads for filtering, and for BAM output, compression; output order is unchanged");
 		
 		CommandLine commandLine;
 		try {
@@ -50,6 +72,7 @@ public class DamageRestrict {
 				damageTag = commandLine.getOptionValue("tag");
 			}
 			int compression = Integer.valueOf(commandLine.getOptionValue("compression", "5"));
+			int numThreads = Integer.valueOf(commandLine.getOptionValue("threads", "1"));
 			
 			// if there is a CRAM file, we need to make sure there is a reference
 			boolean isCramPresent = AlignmentComparison.isCramFilename(inputFilename) ||  AlignmentComparison.isCramFilename(outputFilename);
@@ -60,7 +83,13 @@ public class DamageRestrict {
 			if (commandLine.hasOption("reference")) {
 				cramReference = commandLine.getOptionValue("reference");
 			}
-			filterDamageScore(inputFilename, outputFilename, damageTag, damageThreshold, cramReference, compression);
+			if (numThreads <= 1 && outputFilename.toLowerCase().endsWith(".bam") && RawBAMReader.isBAM(new File(inputFilename))) {
+				filterDamageScoreRaw(inputFilename, outputFilename, damageTag, damageThreshold, compression);
+			} else if (numThreads > 1) {
+				filterDamageScoreInParallel(inputFilename, outputFilename, damageTag, damageThreshold, cramReference, compression, numThreads);
+			} else {
+				filterDamageScore(inputFilename, outputFilename, damageTag, damageThreshold, cramReference, compression);
+			}
 			return 0;
 		} catch(ParseException e) {
 			System.err.println(e.getMessage());
@@ -71,8 +100,55 @@ public class DamageRestrict {
 	}
 	
 	public static void filterDamageScore(String inputFilename, String outputFilename, String damageTag, float damageThreshold, String reference, int compression) throws IOException {
-		SamReader inputReader = null;
-		SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault();
+		SamReader inputReader = openInput(inputFilename, reference, SamReaderFactory.makeDefault());
+		SAMRecordIterator inputIterator = inputReader.iterator();
+		SAMFileHeader header = inputReader.getFileHeader();
+		
+		SAMFileWriter output = makeWriter(header, outputFilename, reference, compression);
+		
+		while(inputIterator.hasNext()){
+			// iterate through alignments
+			SAMRecord record = null;
+			try{
+				record = inputIterator.next();
+				if (passesDamageThreshold(record, damageTag, damageThreshold)) {
+					output.addAlignment(record);
+				}
+			}
+			catch(Exception e){
+				System.err.println(e.toString());
+				if(record != null) {
+					System.err.println(record.toString());
+				}
+			}
+		}
+		output.close();
+	}
+	
+	/**
+	 * Filter BAM to BAM without decoding records. The damage tag is found in the raw auxiliary data, 
+	 * and kept records are copied to the output unchanged. 
+	 */
+	public static void filterDamageScoreRaw(String inputFilename, String outputFilename, String damageTag, float damageThreshold, int compression) throws IOException {
+		try(RawBAMReader reader = new RawBAMReader(new File(inputFilename));
+				BlockCompressedOutputStream output = new BlockCompressedOutputStream(new FileOutputStream(outputFilename), (Path) null, compression);
+				){
+			BAMBody.writeHeader(output, reader.getFileHeader());
+			while(reader.next()) {
+				try{
+					int damageOffset = reader.findTag(damageTag);
+					if (damageOffset >= 0 && reader.getFloatTag(damageOffset) > damageThreshold) {
+						reader.writeRecord(output);
+					}
+				}
+				catch(SAMFormatException e){
+					System.err.println(e.toString());
+				}
+			}
+		}
+	}
+	
+	private static SamReader openInput(String inputFilename, String reference, SamReaderFactory samReaderFactory) throws IOException {
 		CRAMReferenceSource cramReference = null;
 		if (reference != null) {
 			Path referencePath = Paths.get(reference);
@@ -80,13 +156,87 @@ public class DamageRestrict {
 			samReaderFactory.referenceSource(cramReference);
 		}
 		if(AlignmentComparison.isCramFilename(inputFilename)) {
-			inputReader = SamReaderFactory.makeDefault().referenceSource(cramReference).open(SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename))));
+			return SamReaderFactory.makeDefault().referenceSource(cramReference).open(SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename))));
 		} else {
-			inputReader = samReaderFactory.open(SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename))));
+			return samReaderFactory.open(SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename))));
 		}
-		SAMRecordIterator inputIterator = inputReader.iterator();
+	}
+	
+	/**
+	 * Filter batches of records on a thread pool, writing batches in input order. 
+	 * BAM input is read ahead on its own thread, and records are decoded on the pool when their tags are read. 
+	 * For BAM output, each batch is also encoded and compressed on the pool into independent BGZF blocks, 
+	 * and the output thread only concatenates blocks. 
+	 * SAM and CRAM output is written by the output thread with the htsjdk writer, as CRAM containers are encoded serially. 
+	 * If reading the input fails, such as for a truncated file, the incomplete output is deleted. 
+	 */
+	public static void filterDamageScoreInParallel(String inputFilename, String outputFilename, String damageTag, float damageThreshold, String reference, int compression, int numThreads) throws IOException, InterruptedException, ExecutionException {
+		SamReader inputReader = openInput(inputFilename, reference, SamReaderFactory.makeDefault().setUseAsyncIo(true));
 		SAMFileHeader header = inputReader.getFileHeader();
+		boolean compressBatches = outputFilename.toLowerCase().endsWith(".bam");
 		
+		try {
+			OrderedBatches.BatchProcessor<FilteredBatch> filter = (batch, batchStart) -> filterBatch(batch, header, damageTag, damageThreshold, compressBatches, compression);
+			// the calling thread serves as the output thread
+			if(compressBatches) {
+				OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFilename));
+				try {
+					BAMBody.writeHeaderBlocks(output, header, compression);
+					OrderedBatches.run(inputReader.iterator(), numThreads, filter, filtered -> output.write(filtered.compressed));
+					// only after all input was read
+					output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+				} catch(Exception e) {
+					OrderedBatches.discardOutput(output, outputFilename, e);
+					throw e;
+				}
+				output.close();
+			} else {
+				SAMFileWriter output = makeWriter(header, outputFilename, reference, compression);
+				try {
+					OrderedBatches.run(inputReader.iterator(), numThreads, filter, filtered -> {
+						for(SAMRecord record : filtered.records) {
+							output.addAlignment(record);
+						}
+					});
+				} catch(Exception e) {
+					OrderedBatches.discardOutput(output, outputFilename, e);
+					throw e;
+				}
+				output.close();
+			}
+		} finally {
+			inputReader.close();
+		}
+	}
+	
+	private static FilteredBatch filterBatch(List<SAMRecord> batch, SAMFileHeader header, String damageTag, float damageThreshold, boolean compressBatch, int compression) throws IOException {
+		List<SAMRecord> kept = new ArrayList<SAMRecord>(batch.size());
+		for(SAMRecord record : batch) {
+			try{
+				if (passesDamageThreshold(record, damageTag, damageThreshold)) {
+					kept.add(record);
+				}
+			}
+			catch(Exception e){
+				System.err.println(e.toString());
+				System.err.println(record.toString());
+			}
+		}
+		if(compressBatch)
+			return new FilteredBatch(null, BAMBody.compress(kept, header, compression));
+		return new FilteredBatch(kept, null);
+	}
+	
+	/**
+	 * Open SAM/BAM/CRAM output based on the filename extension
+	 * @param header
+	 * @param outputFilename
+	 * @param reference required for CRAM output
+	 * @param compression
+	 * @return
+	 * @throws IOException
+	 */
+	public static SAMFileWriter makeWriter(SAMFileHeader header, String outputFilename, String reference, int compression) throws IOException {
 		SAMFileWriter output;
 		SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
 		outputFileFactory.setCompressionLevel(compression);
@@ -98,23 +248,17 @@ public class DamageRestrict {
 		} else {
 			output = outputFileFactory.makeSAMWriter(header, true, outputFile);
 		}
-		
-		while(inputIterator.hasNext()){
-			// iterate through alignments
-			SAMRecord record = null;
-			try{
-				record = inputIterator.next();
-				if (record.hasAttribute(damageTag) && record.getFloatAttribute(damageTag) > damageThreshold) {
-					output.addAlignment(record);
-				}
-			}
-			catch(Exception e){
-				System.err.println(e.toString());
-				if(record != null) {
-					System.err.println(record.toString());
-				}
-			}
-		}
-		output.close();
+		return output;
+	}
+	
+	/**
+	 * 
+	 * @param record
+	 * @param damageTag
+	 * @param damageThreshold
+	 * @return true if record has a damage score above the threshold
+	 */
+	public static boolean passesDamageThreshold(SAMRecord record, String damageTag, float damageThreshold) {
+		return record.hasAttribute(damageTag) && record.getFloatAttribute(damageTag) > damageThreshold;
 	}
 }
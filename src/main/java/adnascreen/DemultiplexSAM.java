@@ -87,6 +87,9 @@ public class DemultiplexSAM {
 		options.addOption("null", "async", false, "Use asynchronous threading for output");
 		options.addOption("t", "thresholdReads", true, "Threshold number of reads to trigger processing.");
 		options.addOption("o", "outputDirectory", true, "Directory to use for output files");
+		options.addOption(null, "sort", false, "Coordinate sort each output file as it is written. BAM outputs are also indexed.");
+		options.addOption(null, "maxRecordsInRam", true, "Records held in memory for sorting, shared across concurrently open output files, before spilling to temporary files");
+		options.addOption(null, "tempDirectory", true, "Directory for temporary files used in sorting");
 		
 		options.addOption(null, "stdoutFile", true, "Use this file for stdout");
 		options.addOption(null, "stderrFile", true, "Use this file for stderr");
@@ -106,6 +109,9 @@ public class DemultiplexSAM {
 		String barcodeFilename = commandLine.getOptionValue("barcodeFile", NULL);
 		int thresholdReads = Integer.valueOf(commandLine.getOptionValue("thresholdReads", "-1"));
 		String outputDirectory = commandLine.getOptionValue("outputDirectory", ".");
+		boolean sortOnWrite = commandLine.hasOption("sort");
+		int maxRecordsInRam = Integer.valueOf(commandLine.getOptionValue("maxRecordsInRam", "2000000"));
+		String tempDirectory = commandLine.getOptionValue("tempDirectory", NULL);
 		
 		String stdoutFilename = commandLine.getOptionValue("stdoutFile", NULL);
 		PrintStream stdout = (stdoutFilename == null) ? System.out : new PrintStream(stdoutFilename);
@@ -119,6 +125,12 @@ public class DemultiplexSAM {
 		outputFileFactory.setBufferSize(bufferSize);
 		outputFileFactory.setCompressionLevel(compressionLevel);
 		outputFileFactory.setUseAsyncIo(useAsyncThreads);
+		if(sortOnWrite) {
+			// sorted BAM outputs need a file, not a stream, for the index to be written alongside
+			outputFileFactory.setCreateIndex(useBAM);
+			if(tempDirectory != null)
+				outputFileFactory.setTempDirectory(new File(tempDirectory));
+		}
 		
 		// allow explicit additions to list of samples to demultiplex
 		// these will always be demultiplexed, independent of the top number of samples or number of raw reads
@@ -164,7 +176,12 @@ public class DemultiplexSAM {
 				outputFilesConcurrent.put(key, null); // mark this key for output in this pass
 				// we delay opening SAM/BAM file writer until the SAM/BAM header is available
 				// this is after we have opened the first SAM/BAM input file
-			}		
+			}
+			if(sortOnWrite) {
+				// each open output file keeps its own sorted run in memory, so split the budget between them
+				int recordsInRamPerFile = Math.max(1, maxRecordsInRam / outputFilesConcurrent.size());
+				outputFileFactory.setMaxRecordsInRam(recordsInRamPerFile);
+			}
 
 			// iterate through input files
 			List<String> samFilenamesToProcess = commandLine.getArgList();
@@ -219,11 +236,23 @@ public class DemultiplexSAM {
 								if(output == null){ // open new file, if none exists for this key
 									String outputFilename = (keyFlattened.toString() + fileExtension).replace(':', '-'); // Cromwell chokes on files with ':'
 									String outputPath = outputDirectory + "/" + outputFilename;
-									BufferedOutputStream outputFile = new BufferedOutputStream(new FileOutputStream(outputPath), bufferSize);
-									if(useBAM){
-										output = outputFileFactory.makeBAMWriter(header, false, outputFile);
+									if(sortOnWrite) {
+										// htsjdk sorts in bounded runs spilled to temporary files, then merges on close
+										SAMFileHeader sortedHeader = header.clone();
+										sortedHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+										File outputPathFile = new File(outputPath);
+										if(useBAM){
+											output = outputFileFactory.makeBAMWriter(sortedHeader, false, outputPathFile);
+										} else {
+											output = outputFileFactory.makeSAMWriter(sortedHeader, false, outputPathFile);
+										}
 									} else {
-										output = outputFileFactory.makeSAMWriter(header, false, outputFile);
+										BufferedOutputStream outputFile = new BufferedOutputStream(new FileOutputStream(outputPath), bufferSize);
+										if(useBAM){
+											output = outputFileFactory.makeBAMWriter(header, false, outputFile);
+										} else {
+											output = outputFileFactory.makeSAMWriter(header, false, outputFile);
+										}
 									}
 									outputFilesConcurrent.put(keyFlattened, output); // 
 								}
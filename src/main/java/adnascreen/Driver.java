@@ -62,6 +62,9 @@ public class Driver {
 		case "filtersam":
 			FilterSAM.main(remainingArgs);
 			break;
+		case "compilepositions":
+			TargetPositions.main(remainingArgs);
+			break;
 		case "duplicateshistogram":
 			DuplicatesHistogram.main(remainingArgs);
 			break;
@@ -80,6 +83,20 @@ public class Driver {
 		case "damagerestrict":
 			DamageRestrict.main(remainingArgs);
 			break;
+		case "combinedanalysis":
+			CombinedAnalysis.main(remainingArgs);
+			break;
+		case "transformchain":
+			TransformChain.main(remainingArgs);
+			break;
+		case "serve":
+			DriverServer.serve(remainingArgs);
+			break;
+		case "client":
+			int status = DriverServer.client(remainingArgs);
+			if(status != 0)
+				System.exit(status);
+			break;
 		default:
 			throw new IllegalArgumentException("Unknown program: " + command);
 		}
@@ -0,0 +1,440 @@
+package adnascreen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Run Driver programs in one long-running JVM, so many short jobs do not each pay for JVM startup,
+ * class loading, and JIT warm-up.
+ * The server listens on a Unix-domain socket with owner-only permissions, so only its owner can submit jobs.
+ * The client sends its working directory and the Driver arguments,
+ * and receives the standard output and error of the job, including the job's worker threads, then an exit status.
+ *
+ * The JVM has one working directory, so relative paths in file arguments are resolved against the job's directory.
+ * File arguments are listed for each program in FILE_ARGUMENTS, and file options must be given by their full names.
+ * Programs that are not listed are not served.
+ *
+ */
+public class DriverServer implements Closeable {
+	private static final int EXIT = 0;
+	private static final int STDOUT = 1;
+	private static final int STDERR = 2;
+	/**
+	 * Options and positional arguments of a program that are files
+	 */
+	static class FileArguments {
+		final Set<String> fileOptions = new HashSet<String>();
+		final Set<String> multipleFileOptions = new HashSet<String>();
+		// options without values, if positional arguments are files
+		Set<String> flags = null;
+
+		FileArguments files(String... options) {
+			fileOptions.addAll(Arrays.asList(options));
+			return this;
+		}
+
+		/**
+		 * Options followed by one or more files, up to the next option
+		 */
+		FileArguments multipleFiles(String... options) {
+			multipleFileOptions.addAll(Arrays.asList(options));
+			return this;
+		}
+
+		/**
+		 * Positional arguments are files. All options other than these flags take one value.
+		 */
+		FileArguments positionalFiles(String... flags) {
+			this.flags = new HashSet<String>(Arrays.asList(flags));
+			return this;
+		}
+	}
+
+	// served programs, by Driver program name. barcodecount calls System.exit, so it is not served.
+	static final Map<String, FileArguments> FILE_ARGUMENTS = new HashMap<String, FileArguments>();
+	static {
+		FILE_ARGUMENTS.put("version", new FileArguments());
+		FILE_ARGUMENTS.put("indexandbarcodescreener", new FileArguments()
+				.files("--i5-indices", "--i7-indices", "-b", "--barcodes", "-r", "--read-group-file", "-c", "--barcode-count", "-x", "--index-barcode-keys")
+				.positionalFiles("-y", "--reverse-complement-i5", "--disable-flowcell-lane-check"));
+		FILE_ARGUMENTS.put("aggregatestatistics", new FileArguments().positionalFiles());
+		FILE_ARGUMENTS.put("demultiplexsam", new FileArguments()
+				.files("-s", "--statisticsFilename", "-f", "--barcodeFile", "-o", "--outputDirectory", "--tempDirectory", "--stdoutFile", "--stderrFile")
+				.positionalFiles("-b", "--BAM", "-null", "--async", "--sort"));
+		FILE_ARGUMENTS.put("readmarkduplicatesstatistics", new FileArguments().positionalFiles());
+		FILE_ARGUMENTS.put("samstats", new FileArguments().files("-f", "--filename", "-l", "--length-histogram"));
+		FILE_ARGUMENTS.put("softclip", new FileArguments().files("-i", "-o"));
+		FILE_ARGUMENTS.put("hardclip", new FileArguments().files("-i", "-o"));
+		FILE_ARGUMENTS.put("assignreadgroups", new FileArguments().files("-i", "--input-filename", "-o", "--output-filename"));
+		FILE_ARGUMENTS.put("filtersam", new FileArguments().files("-i", "--input_BAM", "-o", "--output_BAM", "-p", "--positions"));
+		FILE_ARGUMENTS.put("compilepositions", new FileArguments().files("-i", "--input", "-o", "--output"));
+		FILE_ARGUMENTS.put("duplicateshistogram", new FileArguments().files("-i", "--input_BAM"));
+		FILE_ARGUMENTS.put("readgrouprewrite", new FileArguments().files("-i", "--input-filename", "-o", "--output-filename"));
+		FILE_ARGUMENTS.put("duplicatestagrewrite", new FileArguments().files("-i", "--input-filename", "-o", "--output-filename"));
+		FILE_ARGUMENTS.put("barcodemover", new FileArguments().files("-i", "--input", "-o", "--output"));
+		FILE_ARGUMENTS.put("alignmentcomparison", new FileArguments().files("-c", "--check", "-r", "--reference").multipleFiles("-i", "--input"));
+		FILE_ARGUMENTS.put("damagerestrict", new FileArguments().files("-i", "--input", "-o", "--output", "-r", "--reference"));
+		FILE_ARGUMENTS.put("combinedanalysis", new FileArguments().files("-i", "--input", "-r", "--reference", "--stats", "--length-histogram",
+				"--duplicates-histogram", "--damage-output", "--filter-output", "--positions"));
+		FILE_ARGUMENTS.put("transformchain", new FileArguments().files("-i", "--input", "-o", "--output", "--positions"));
+	}
+
+	// output streams of the job on this thread, inherited by threads the job starts
+	private static final InheritableThreadLocal<OutputStream> jobOut = new InheritableThreadLocal<OutputStream>();
+	private static final InheritableThreadLocal<OutputStream> jobErr = new InheritableThreadLocal<OutputStream>();
+
+	private final ServerSocketChannel serverChannel;
+	private final Path socketPath;
+	private final int numThreads;
+	// milliseconds for a client to send its job, so a client that sends nothing does not hold a job slot
+	int handshakeTimeout = 10000;
+	private PrintStream originalOut;
+	private PrintStream originalErr;
+
+	/**
+	 * @param socketPath Unix-domain socket to create, replacing any existing file
+	 * @param numThreads number of jobs that run at the same time
+	 * @throws IOException
+	 */
+	public DriverServer(Path socketPath, int numThreads) throws IOException {
+		this.socketPath = socketPath;
+		this.numThreads = numThreads;
+		// bind in a directory only the owner can enter, then move the socket into place with owner-only permissions
+		Path privateDirectory = Files.createTempDirectory(socketPath.toAbsolutePath().getParent(), ".serve",
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		Path boundPath = privateDirectory.resolve("socket");
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			serverChannel.bind(UnixDomainSocketAddress.of(boundPath));
+			Files.setPosixFilePermissions(boundPath, PosixFilePermissions.fromString("rw-------"));
+			Files.move(boundPath, socketPath, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			serverChannel.close();
+			throw e;
+		} finally {
+			Files.deleteIfExists(boundPath);
+			Files.delete(privateDirectory);
+		}
+	}
+
+	public static void serve(String[] args) throws ParseException, IOException {
+		CommandLineParser parser = new DefaultParser();
+		Options options = new Options();
+		options.addRequiredOption("s", "socket", true, "Unix-domain socket to listen on, created with owner-only permissions");
+		options.addOption("n", "threads", true, "Number of jobs to run at the same time, default 1");
+		CommandLine commandLine	= parser.parse(options, args);
+
+		Path socketPath = Paths.get(commandLine.getOptionValue("socket"));
+		int numThreads = Integer.valueOf(commandLine.getOptionValue("threads", "1"));
+		try(DriverServer server = new DriverServer(socketPath, numThreads)){
+			server.run();
+		}
+	}
+
+	/**
+	 * Accept and run jobs until the server is closed
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		originalOut = System.out;
+		originalErr = System.err;
+		System.setOut(new PrintStream(new JobOutputStream(jobOut, originalOut)));
+		System.setErr(new PrintStream(new JobOutputStream(jobErr, originalErr)));
+		ExecutorService jobs = Executors.newFixedThreadPool(numThreads);
+		ScheduledExecutorService handshakeTimer = Executors.newSingleThreadScheduledExecutor();
+		try {
+			while(true) {
+				SocketChannel channel;
+				try {
+					channel = serverChannel.accept();
+				} catch(ClosedChannelException e) {
+					break; // closed
+				}
+				jobs.submit(() -> runJob(channel, handshakeTimer));
+			}
+		} finally {
+			jobs.shutdown();
+			handshakeTimer.shutdownNow();
+			System.setOut(originalOut);
+			System.setErr(originalErr);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverChannel.close();
+		Files.deleteIfExists(socketPath);
+	}
+
+	private void runJob(SocketChannel channel, ScheduledExecutorService handshakeTimer) {
+		try(SocketChannel c = channel;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+				){
+			// closing the channel ends a blocked read
+			ScheduledFuture<?> timeout = handshakeTimer.schedule(() -> {
+				try {
+					c.close();
+				} catch(IOException e) {
+					// already closed
+				}
+			}, handshakeTimeout, TimeUnit.MILLISECONDS);
+			String directory = in.readUTF();
+			String[] args = new String[in.readInt()];
+			for(int n = 0; n < args.length; n++) {
+				args[n] = in.readUTF();
+			}
+			if(!timeout.cancel(false))
+				return; // timed out
+
+			OutputStream stdout = new BufferedOutputStream(new FrameOutputStream(out, STDOUT), 65536);
+			jobOut.set(stdout);
+			jobErr.set(new FrameOutputStream(out, STDERR));
+			int status;
+			try {
+				status = runDriver(resolvePaths(args, directory));
+			} catch(Throwable t) {
+				t.printStackTrace();
+				status = 1;
+			} finally {
+				jobOut.remove();
+				jobErr.remove();
+			}
+			stdout.flush();
+			synchronized(out) {
+				out.writeByte(EXIT);
+				out.writeInt(status);
+				out.flush();
+			}
+		} catch(IOException e) {
+			// client disconnected
+			originalErr.println(e.toString());
+		}
+	}
+
+	private static int runDriver(String[] args) throws Exception {
+		String command = (args.length > 0) ? args[0].toLowerCase() : "";
+		if(!FILE_ARGUMENTS.containsKey(command)) {
+			System.err.println("Not available in serve mode: " + (args.length > 0 ? args[0] : ""));
+			return 2;
+		}
+		Driver.main(args);
+		return 0;
+	}
+
+	/**
+	 * Make relative paths in the file arguments of a served program absolute, using the job's working directory.
+	 * File options are recognized as "-x value", "-xvalue", "--name value", and "--name=value".
+	 * @param args Driver arguments, starting with the program name
+	 * @param directory job's working directory
+	 * @return arguments with resolved paths
+	 */
+	static String[] resolvePaths(String[] args, String directory) {
+		String[] resolved = args.clone();
+		FileArguments fileArguments = (args.length > 0) ? FILE_ARGUMENTS.get(args[0].toLowerCase()) : null;
+		if(fileArguments == null)
+			return resolved;
+		boolean positionalFiles = fileArguments.flags != null;
+		boolean optionsEnded = false;
+		for(int n = 1; n < args.length; n++) {
+			String arg = args[n];
+			if(optionsEnded || !arg.startsWith("-") || arg.equals("-")) {
+				if(positionalFiles)
+					resolved[n] = resolve(arg, directory);
+				continue;
+			}
+			if(arg.equals("--")) {
+				optionsEnded = true;
+				continue;
+			}
+			boolean longOption = arg.startsWith("--");
+			int equals = longOption ? arg.indexOf('=') : -1;
+			String name = (equals > 0) ? arg.substring(0, equals) : arg;
+			boolean attachedValue = (equals > 0) || (!longOption && arg.length() > 2);
+			if(fileArguments.multipleFileOptions.contains(name)) {
+				while(n + 1 < args.length && !args[n + 1].startsWith("-")) {
+					n++;
+					resolved[n] = resolve(args[n], directory);
+				}
+			} else if(fileArguments.fileOptions.contains(name)) {
+				if(equals > 0)
+					resolved[n] = name + "=" + resolve(arg.substring(equals + 1), directory);
+				else if(n + 1 < args.length) {
+					n++;
+					resolved[n] = resolve(args[n], directory);
+				}
+			} else if(!longOption && arg.length() > 2 && fileArguments.fileOptions.contains(arg.substring(0, 2))) {
+				resolved[n] = arg.substring(0, 2) + resolve(arg.substring(2), directory);
+			} else if(positionalFiles && !attachedValue && !fileArguments.flags.contains(name)) {
+				n++; // value of an option that is not a file
+			}
+		}
+		return resolved;
+	}
+
+	private static String resolve(String path, String directory) {
+		if(path.isEmpty() || new File(path).isAbsolute())
+			return path;
+		return new File(directory, path).getPath();
+	}
+
+	/**
+	 * Run one job on the server at the socket: client options, then Driver arguments
+	 * @param args
+	 * @return exit status of the job
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	public static int client(String[] args) throws ParseException, IOException {
+		CommandLineParser parser = new DefaultParser();
+		Options options = new Options();
+		options.addRequiredOption("s", "socket", true, "Unix-domain socket of the server");
+		// the program and its options follow the client options
+		CommandLine commandLine	= parser.parse(options, args, true);
+
+		Path socketPath = Paths.get(commandLine.getOptionValue("socket"));
+		return submit(socketPath, System.getProperty("user.dir"), commandLine.getArgs(), System.out, System.err);
+	}
+
+	/**
+	 * Send a job to a server and copy its output
+	 * @param socketPath
+	 * @param directory working directory for relative paths
+	 * @param args Driver arguments
+	 * @param stdout
+	 * @param stderr
+	 * @return exit status of the job
+	 * @throws IOException
+	 */
+	public static int submit(Path socketPath, String directory, String[] args, PrintStream stdout, PrintStream stderr) throws IOException {
+		try(SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+				){
+			out.writeUTF(directory);
+			out.writeInt(args.length);
+			for(String arg : args) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+
+			byte[] buffer = new byte[65536];
+			while(true) {
+				int type = in.read();
+				if(type == EXIT) {
+					stdout.flush();
+					stderr.flush();
+					return in.readInt();
+				} else if(type == STDOUT || type == STDERR) {
+					int length = in.readInt();
+					if(length > buffer.length)
+						buffer = new byte[length];
+					in.readFully(buffer, 0, length);
+					PrintStream target = (type == STDOUT) ? stdout : stderr;
+					target.write(buffer, 0, length);
+					if(type == STDERR)
+						target.flush();
+				} else {
+					throw new IOException("Server closed connection before job finished");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes to the job output stream of the current thread, or if there is no job, to the server's own stream
+	 */
+	private static class JobOutputStream extends OutputStream {
+		private final ThreadLocal<OutputStream> job;
+		private final OutputStream server;
+
+		JobOutputStream(ThreadLocal<OutputStream> job, OutputStream server) {
+			this.job = job;
+			this.server = server;
+		}
+
+		private OutputStream target() {
+			OutputStream target = job.get();
+			return (target != null) ? target : server;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+
+	/**
+	 * Sends each write to the client as a frame: stream type, length, and bytes
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final int type;
+
+		FrameOutputStream(DataOutputStream out, int type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return;
+			synchronized(out) {
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+				out.flush();
+			}
+		}
+	}
+}
@@ -3,108 +3,272 @@ package adnascreen;
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.lang3.mutable.MutableInt;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 
 public class DuplicatesHistogram {
 	int maximumDepth = 0;
-	HashMap<Integer, MutableInt> occurrencesByDepth;
-	
+	// number of distinct reads seen with each depth, indexed by depth
+	int[] occurrencesByDepth;
+	// alignments at the current start position
+	private PositionCounts countsAtThisPosition = new PositionCounts();
+	private int currentReferenceIndex = -1;
+	private int currentAlignmentStart = 0;
+
 	DuplicatesHistogram(){
-		occurrencesByDepth = new HashMap<Integer, MutableInt>();
+		occurrencesByDepth = new int[16];
 	}
-	
+
 	DuplicatesHistogram(String inputFilename) throws IOException{
-		occurrencesByDepth = new HashMap<Integer, MutableInt>();
+		this();
 		uniqueReadHistogram(inputFilename);
 	}
-	
-	public static void main(String [] args) throws ParseException, IOException {
+
+	/**
+	 * Count an indexed, coordinate-sorted BAM with reference sequences processed concurrently.
+	 * Duplicates share a start position, so reference sequences are counted independently and summed. 
+	 */
+	DuplicatesHistogram(String inputFilename, int numThreads) throws IOException, InterruptedException, ExecutionException{
+		this();
+		SAMSequenceDictionary dictionary;
+		try(SamReader reader = ReferenceSharding.openIndexed(inputFilename)){
+			dictionary = reader.getFileHeader().getSequenceDictionary();
+		}
+		List<DuplicatesHistogram> shards = ReferenceSharding.forEachReference(dictionary, numThreads, (SAMSequenceRecord reference) -> {
+			DuplicatesHistogram shard = new DuplicatesHistogram();
+			try(
+					SamReader reader = ReferenceSharding.openIndexed(inputFilename);
+					SAMRecordIterator i = reader.queryOverlapping(reference.getSequenceName(), 0, 0);
+					){
+				while(i.hasNext()){
+					try{
+						SAMRecord record = i.next();
+						shard.add(record);
+					}
+					catch(Exception e){
+						System.err.println(e.toString());
+					}
+				}
+			}
+			shard.finish();
+			return shard;
+		});
+		for(DuplicatesHistogram shard : shards) {
+			combine(shard);
+		}
+	}
+
+	public static void main(String [] args) throws ParseException, IOException, InterruptedException, ExecutionException {
 		CommandLineParser parser = new DefaultParser();
 		Options options = new Options();
 		options.addRequiredOption("i", "input_BAM", true, "Input BAM filename");
+		options.addOption("n", "threads", true, "Number of threads for an indexed, coordinate-sorted BAM; work is split by reference sequence");
 		CommandLine commandLine	= parser.parse(options, args);
-		
+
 		String inputFilename = commandLine.getOptionValue('i');
-		DuplicatesHistogram duplicatesHistogram = new DuplicatesHistogram(inputFilename);
-		int[] histogram = duplicatesHistogram.getHistogram();
+		int numThreads = Integer.valueOf(commandLine.getOptionValue('n', "1"));
+		DuplicatesHistogram duplicatesHistogram;
+		if(numThreads > 1)
+			duplicatesHistogram = new DuplicatesHistogram(inputFilename, numThreads);
+		else
+			duplicatesHistogram = new DuplicatesHistogram(inputFilename);
+		duplicatesHistogram.print(System.out);
+	}
+
+	public void print(PrintStream out) {
+		int[] histogram = getHistogram();
 		for(int i = 0; i < histogram.length; i++) {
-			System.out.println( (i+1) + "\t" + histogram[i]);
+			out.println( (i+1) + "\t" + histogram[i]);
 		}
 	}
-	
-	private void uniqueReadHistogram(String inputFilename) throws IOException {		
+
+	private void uniqueReadHistogram(String inputFilename) throws IOException {
 		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename)));
 		try(
 				SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
 				){
 			SAMRecordIterator i = reader.iterator();
-			HashMap<String, MutableInt> countsAtThisPosition = new HashMap<String, MutableInt>();
-			String currentReference = null;
-			int currentAlignmentStart = 0;
 			while(i.hasNext()){
 				// iterate through alignments
 				try{
 					SAMRecord record = i.next();
-					 
-					if(!record.getReadUnmappedFlag()) {
-						String reference = record.getReferenceName();
-						int start = record.getAlignmentStart();
-						// if we are at a new start position, record contents of the current position and reset 
-						if(!reference.equals(currentReference) || currentAlignmentStart != start) {
-							updateHistogramWithCurrentStartPosition(countsAtThisPosition);
-							countsAtThisPosition.clear();
-						}
-						// at this start position, count
-						currentReference = reference;
-						currentAlignmentStart = start;
-						String duplicateKey = reference + "_" + start + "_" + record.getStringAttribute("XD");
-						if(!countsAtThisPosition.containsKey(duplicateKey)) {
-							countsAtThisPosition.put(duplicateKey, new MutableInt(0));
-						}
-						MutableInt counter = countsAtThisPosition.get(duplicateKey);
-						counter.increment();
-					}
+					add(record);
 				}
 				catch(Exception e){
 					System.err.println(e.toString());
 				}
 			}
-			updateHistogramWithCurrentStartPosition(countsAtThisPosition);
-			countsAtThisPosition.clear();
+			finish();
 		}
 	}
-	
-	private void updateHistogramWithCurrentStartPosition(HashMap<String, MutableInt> countsAtThisPosition) {
-		for(String key : countsAtThisPosition.keySet()) {
-			int depth = countsAtThisPosition.get(key).getValue();
-			maximumDepth = Math.max(depth, maximumDepth);
-			if(!occurrencesByDepth.containsKey(depth)) {
-				occurrencesByDepth.put(depth, new MutableInt(0));
+
+	/**
+	 * Count one alignment. Alignments must be passed in coordinate order.
+	 * @param record
+	 */
+	public void add(SAMRecord record) {
+		if(!record.getReadUnmappedFlag()) {
+			int referenceIndex = record.getReferenceIndex();
+			int start = record.getAlignmentStart();
+			// if we are at a new start position, record contents of the current position and reset
+			if(referenceIndex != currentReferenceIndex || currentAlignmentStart != start) {
+				updateHistogramWithCurrentStartPosition();
 			}
-			MutableInt count = occurrencesByDepth.get(depth);
-			count.increment();
+			// at this start position, count
+			currentReferenceIndex = referenceIndex;
+			currentAlignmentStart = start;
+			countsAtThisPosition.increment(referenceIndex, record.getStringAttribute(DemultiplexSAM.duplicatesSAMTag));
+		}
+	}
+
+	/**
+	 * Count the last start position after all alignments have been added
+	 */
+	public void finish() {
+		updateHistogramWithCurrentStartPosition();
+	}
+
+	private void updateHistogramWithCurrentStartPosition() {
+		for(int n = 0; n < countsAtThisPosition.size; n++) {
+			int depth = countsAtThisPosition.counts[countsAtThisPosition.occupied[n]];
+			addOccurrences(depth, 1);
+		}
+		countsAtThisPosition.clear();
+	}
+
+	private void addOccurrences(int depth, int occurrences) {
+		maximumDepth = Math.max(depth, maximumDepth);
+		if(depth >= occurrencesByDepth.length) {
+			occurrencesByDepth = Arrays.copyOf(occurrencesByDepth, Math.max(depth + 1, 2 * occurrencesByDepth.length));
 		}
+		occurrencesByDepth[depth] += occurrences;
 	}
-	
+
+	/**
+	 * Add the counts from a histogram of other alignments with no start positions in common
+	 * @param other
+	 */
+	public void combine(DuplicatesHistogram other) {
+		for(int depth = 1; depth <= other.maximumDepth; depth++) {
+			if(other.occurrencesByDepth[depth] > 0)
+				addOccurrences(depth, other.occurrencesByDepth[depth]);
+		}
+	}
+
 	public int[] getHistogram() {
 		// populate histogram
 		int [] histogram = new int[maximumDepth];
 		for(int depth = 1; depth <= maximumDepth; depth++) {
-			histogram[depth-1] = occurrencesByDepth.getOrDefault(depth, new MutableInt(0)).getValue();
+			histogram[depth-1] = occurrencesByDepth[depth];
 		}
 		return histogram;
 	}
+
+	/**
+	 * Open addressing map from (reference index, duplicates tag) to count for the alignments at one start position.
+	 * Clearing only touches occupied slots, so the map is cheap to reuse for every start position.
+	 */
+	static final class PositionCounts {
+		private static final int INITIAL_CAPACITY = 64; // power of 2
+
+		private int[] referenceIndices;
+		private String[] tags;
+		private int[] hashes;
+		int[] counts; // 0 for an empty slot
+		int[] occupied; // slots in use, in order of first use
+		int size;
+
+		PositionCounts(){
+			allocate(INITIAL_CAPACITY);
+		}
+
+		private void allocate(int capacity) {
+			referenceIndices = new int[capacity];
+			tags = new String[capacity];
+			hashes = new int[capacity];
+			counts = new int[capacity];
+			occupied = new int[capacity];
+			size = 0;
+		}
+
+		private static int hash(int referenceIndex, String tag) {
+			int h = 31 * referenceIndex + (tag == null ? 0 : tag.hashCode());
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * @return count after incrementing
+		 */
+		int increment(int referenceIndex, String tag) {
+			int h = hash(referenceIndex, tag);
+			int mask = counts.length - 1;
+			int slot = h & mask;
+			while(counts[slot] != 0) {
+				if(hashes[slot] == h && referenceIndices[slot] == referenceIndex && Objects.equals(tags[slot], tag)) {
+					return ++counts[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+			// new key, keeping load at most one half
+			if(2 * (size + 1) > counts.length) {
+				grow();
+				return increment(referenceIndex, tag);
+			}
+			referenceIndices[slot] = referenceIndex;
+			tags[slot] = tag;
+			hashes[slot] = h;
+			counts[slot] = 1;
+			occupied[size++] = slot;
+			return 1;
+		}
+
+		private void grow() {
+			int[] oldReferenceIndices = referenceIndices;
+			String[] oldTags = tags;
+			int[] oldHashes = hashes;
+			int[] oldCounts = counts;
+			int[] oldOccupied = occupied;
+			int oldSize = size;
+			allocate(2 * oldCounts.length);
+			int mask = counts.length - 1;
+			for(int n = 0; n < oldSize; n++) {
+				int oldSlot = oldOccupied[n];
+				int slot = oldHashes[oldSlot] & mask;
+				while(counts[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				referenceIndices[slot] = oldReferenceIndices[oldSlot];
+				tags[slot] = oldTags[oldSlot];
+				hashes[slot] = oldHashes[oldSlot];
+				counts[slot] = oldCounts[oldSlot];
+				occupied[size++] = slot;
+			}
+		}
+
+		void clear() {
+			for(int n = 0; n < size; n++) {
+				int slot = occupied[n];
+				counts[slot] = 0;
+				tags[slot] = null;
+			}
+			size = 0;
+		}
+	}
 }
@@ -2,9 +2,11 @@ package adnascreen;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -20,6 +22,7 @@ import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 
 public class DuplicatesTagRewrite {
 	/**
@@ -47,6 +50,13 @@ public class DuplicatesTagRewrite {
 		String inputFilename = commandLine.getOptionValue("input-filename");
 		String outputFilename = commandLine.getOptionValue("output-filename");
 		boolean useBAM = commandLine.hasOption("BAM") || Driver.isBAMFilename(outputFilename);
+		String p5_barcode_tag = commandLine.getOptionValue("p5-barcode-tag");
+		String p7_barcode_tag = commandLine.getOptionValue("p7-barcode-tag");
+		
+		if(useBAM && RawBAMReader.isBAM(new File(inputFilename))) {
+			rewriteRaw(inputFilename, outputFilename, p5_barcode_tag, p7_barcode_tag);
+			return;
+		}
 		
 		SAMFileWriter output = null;
 		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename)));
@@ -62,28 +72,12 @@ public class DuplicatesTagRewrite {
 			} else {
 				output = outputFileFactory.makeSAMWriter(header, true, outputFile);
 			}
-			
-			String p5_barcode_tag = commandLine.getOptionValue("p5-barcode-tag");
-			String p7_barcode_tag = commandLine.getOptionValue("p7-barcode-tag");
 
 			SAMRecordIterator i = reader.iterator();
 			while(i.hasNext()){
 				// iterate through alignments
 				SAMRecord record = i.next();
-				StringBuilder builder = new StringBuilder();
-				if (p5_barcode_tag != null) {
-					String p5_barcode = record.getStringAttribute(p5_barcode_tag);
-					builder.append(p5_barcode);
-				}
-				builder.append(IndexAndBarcodeKey.FIELD_SEPARATOR);
-				if (p7_barcode_tag != null) {
-					String p7_barcode = record.getStringAttribute(p7_barcode_tag);
-					builder.append(p7_barcode);
-				}
-				builder.append(IndexAndBarcodeKey.FIELD_SEPARATOR);
-				builder.append(record.getReadLength());
-				String deduplicationCriterion = builder.toString();
-				record.setAttribute(DemultiplexSAM.duplicatesSAMTag, deduplicationCriterion);
+				rewriteDuplicatesTag(record, p5_barcode_tag, p7_barcode_tag);
 				output.addAlignment(record);
 			}
 			
@@ -93,4 +87,47 @@ public class DuplicatesTagRewrite {
 				output.close();
 		}
 	}
+	
+	/**
+	 * Set the deduplication tag of a record from its barcode tags and read length
+	 * @param record
+	 * @param p5_barcode_tag null if there is no p5 barcode
+	 * @param p7_barcode_tag null if there is no p7 barcode
+	 */
+	public static void rewriteDuplicatesTag(SAMRecord record, String p5_barcode_tag, String p7_barcode_tag) {
+		String p5_barcode = (p5_barcode_tag != null) ? record.getStringAttribute(p5_barcode_tag) : null;
+		String p7_barcode = (p7_barcode_tag != null) ? record.getStringAttribute(p7_barcode_tag) : null;
+		record.setAttribute(DemultiplexSAM.duplicatesSAMTag, deduplicationCriterion(p5_barcode_tag, p5_barcode, p7_barcode_tag, p7_barcode, record.getReadLength()));
+	}
+	
+	/**
+	 * BAM to BAM, setting the tag directly in each raw record without decoding or re-encoding
+	 */
+	public static void rewriteRaw(String inputFilename, String outputFilename, String p5_barcode_tag, String p7_barcode_tag) throws IOException {
+		try(RawBAMReader reader = new RawBAMReader(new File(inputFilename));
+				BlockCompressedOutputStream output = new BlockCompressedOutputStream(new FileOutputStream(outputFilename), (Path) null);
+				){
+			BAMBody.writeHeader(output, reader.getFileHeader());
+			while(reader.next()) {
+				String p5_barcode = (p5_barcode_tag != null) ? reader.getStringTag(p5_barcode_tag) : null;
+				String p7_barcode = (p7_barcode_tag != null) ? reader.getStringTag(p7_barcode_tag) : null;
+				reader.setStringTag(DemultiplexSAM.duplicatesSAMTag, deduplicationCriterion(p5_barcode_tag, p5_barcode, p7_barcode_tag, p7_barcode, reader.getReadLength()));
+				reader.writeRecord(output);
+			}
+		}
+	}
+	
+	private static String deduplicationCriterion(String p5_barcode_tag, String p5_barcode, String p7_barcode_tag, String p7_barcode, int readLength) {
+		StringBuilder builder = new StringBuilder();
+		if (p5_barcode_tag != null) {
+			builder.append(p5_barcode);
+		}
+		builder.append(IndexAndBarcodeKey.FIELD_SEPARATOR);
+		if (p7_barcode_tag != null) {
+			builder.append(p7_barcode);
+		}
+		builder.append(IndexAndBarcodeKey.FIELD_SEPARATOR);
+		builder.append(readLength);
+		return builder.toString();
+	}
 }
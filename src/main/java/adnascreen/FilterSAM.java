@@ -2,13 +2,21 @@ package adnascreen;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Set;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -16,6 +24,9 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
@@ -24,26 +35,28 @@ import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.util.AbstractRecordAndOffset;
-import htsjdk.samtools.util.OverlapDetector;
-import htsjdk.tribble.bed.BEDCodec;
-import htsjdk.tribble.bed.BEDFeature;
 
 // Filter for 1240k target set with minimum base and mapping qualities
 // Allow soft clipping in this pass
 public class FilterSAM {
-	OverlapDetector<BEDFeature> features;
+	TargetPositions positions;
+	private TargetPositions.Cursor cursor;
 	
-	public static void main(String [] args) throws ParseException, IOException {
+	// merged BED intervals in each indexed query
+	public static final int INTERVALS_PER_CHUNK = 1000;
+	
+	public static void main(String [] args) throws ParseException, IOException, InterruptedException, ExecutionException {
 		CommandLineParser parser = new DefaultParser();
 		Options options = new Options();
 		options.addRequiredOption("i", "input_BAM", true, "Input BAM filename");
 		options.addRequiredOption("o", "output_BAM", true, "Output BAM filename");
 		options.addRequiredOption("m", "minimum_mapping_quality", true, "minimum mapping quality");
 		options.addRequiredOption("q", "minimum_base_quality", true, "minimum base quality");
-		options.addRequiredOption("p", "positions", true, "positions file in BED format");
+		options.addRequiredOption("p", "positions", true, "positions file in BED format, or compiled with compilepositions");
 		options.addOption("b", "BAM", false, "Use bam files for output");
 		//options.addOption("c", "soft_clip", true, "bases to soft clip from clip for deamination damage");
+		options.addOption(null, "indexed", false, "Read only alignments overlapping positions, using the index of a coordinate-sorted BAM/CRAM");
+		options.addOption(null, "threads", true, "Number of threads for indexed reading");
 		Clipping.addSoftClipCommandLineOptions(options);
 		
 		CommandLine commandLine	= parser.parse(options, args);
@@ -56,21 +69,22 @@ public class FilterSAM {
 		boolean useBAM = commandLine.hasOption('b') || Driver.isBAMFilename(outputFilename);
 		Clipping softClipLengths = new Clipping(commandLine);
 		
+		if(commandLine.hasOption("indexed")) {
+			int numThreads = Integer.valueOf(commandLine.getOptionValue("threads", "1"));
+			FilterSAM filter = new FilterSAM(bedFilename);
+			filterIndexed(inputFilename, outputFilename, useBAM, filter, softClipLengths, minimumMappingQuality, minimumBaseQuality, numThreads, INTERVALS_PER_CHUNK);
+			return;
+		}
+		
 		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename)));
 		try(
 				SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
 				){
 			FilterSAM filter = new FilterSAM(bedFilename);
 			SAMFileHeader header = reader.getFileHeader();
+			softClipLengths.setHeader(header);
 			
-			SAMFileWriter output;
-			SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
-			BufferedOutputStream outputFile = new BufferedOutputStream(new FileOutputStream(outputFilename));
-			if(useBAM){
-				output = outputFileFactory.makeBAMWriter(header, false, outputFile);
-			} else {
-				output = outputFileFactory.makeSAMWriter(header, false, outputFile);
-			}
+			SAMFileWriter output = makeWriter(header, outputFilename, useBAM);
 
 			SAMRecordIterator i = reader.iterator();
 			while(i.hasNext()){
@@ -78,14 +92,9 @@ public class FilterSAM {
 				SAMRecord record = null;
 				try{
 					record = i.next();
-					if(!record.getReadUnmappedFlag()) {
-						int softClipBases = softClipLengths.getClippingLength(record);
-						if(softClipBases > 0)
-							Clipping.softClipBothEndsOfRead(record, softClipBases);
-						if (Clipping.isNonEmptyRead(record) && filter.filter(record, minimumMappingQuality, minimumBaseQuality)) {
-							output.addAlignment(record);
-						}
-					}				
+					if (filter.clipAndFilter(record, softClipLengths, minimumMappingQuality, minimumBaseQuality)) {
+						output.addAlignment(record);
+					}
 				}
 				catch(Exception e){
 					System.err.println(e.toString());
@@ -100,22 +109,135 @@ public class FilterSAM {
 		finally{}
 	}
 	
+	/**
+	 * Filter only alignments overlapping the BED intervals, fetched from an indexed, coordinate-sorted file. 
+	 * Merged intervals are split into chunks that are queried and filtered concurrently. 
+	 * Chunk results are written in order, so output matches filtering the whole file. 
+	 * @param filter target positions
+	 * @param intervalsPerChunk number of merged intervals in each query
+	 */
+	public static void filterIndexed(String inputFilename, String outputFilename, boolean useBAM, FilterSAM filter, Clipping softClipLengths, 
+			int minimumMappingQuality, int minimumBaseQuality, int numThreads, int intervalsPerChunk) throws IOException, InterruptedException, ExecutionException {
+		SAMFileHeader header;
+		try(SamReader reader = ReferenceSharding.openIndexed(inputFilename)){
+			header = reader.getFileHeader();
+		}
+		softClipLengths.setHeader(header);
+		QueryInterval[] intervals = filter.positions.queryIntervals(header.getSequenceDictionary());
+		
+		// each thread queries with its own reader
+		List<SamReader> readers = Collections.synchronizedList(new ArrayList<SamReader>());
+		ThreadLocal<SamReader> threadReader = ThreadLocal.withInitial(() -> {
+			try {
+				SamReader reader = ReferenceSharding.openIndexed(inputFilename);
+				readers.add(reader);
+				return reader;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		SAMFileWriter output = makeWriter(header, outputFilename, useBAM);
+		try {
+			// chunk results in order, bounded so queries do not get far ahead of writing
+			Deque<Future<List<SAMRecord>>> pending = new ArrayDeque<Future<List<SAMRecord>>>();
+			for(int chunkStart = 0; chunkStart < intervals.length; chunkStart += intervalsPerChunk) {
+				QueryInterval[] chunk = Arrays.copyOfRange(intervals, chunkStart, Math.min(chunkStart + intervalsPerChunk, intervals.length));
+				// alignments overlapping the previous chunk were already output with that chunk
+				QueryInterval previous = chunkStart > 0 ? intervals[chunkStart - 1] : null;
+				pending.add(pool.submit(new Callable<List<SAMRecord>>() {
+					public List<SAMRecord> call() {
+						FilterSAM chunkFilter = new FilterSAM(filter.positions);
+						List<SAMRecord> kept = new ArrayList<SAMRecord>();
+						try(SAMRecordIterator i = threadReader.get().query(chunk, false)){
+							while(i.hasNext()){
+								SAMRecord record = null;
+								try{
+									record = i.next();
+									if(previous != null && record.getReferenceIndex() == previous.referenceIndex 
+											&& record.getAlignmentStart() <= previous.end)
+										continue;
+									if(chunkFilter.clipAndFilter(record, softClipLengths, minimumMappingQuality, minimumBaseQuality))
+										kept.add(record);
+								}
+								catch(Exception e){
+									System.err.println(e.toString());
+									if(record != null) {
+										System.err.println(record.toString());
+									}
+								}
+							}
+						}
+						return kept;
+					}
+				}));
+				if(pending.size() >= 2 * numThreads) {
+					for(SAMRecord record : pending.removeFirst().get()) {
+						output.addAlignment(record);
+					}
+				}
+			}
+			while(!pending.isEmpty()) {
+				for(SAMRecord record : pending.removeFirst().get()) {
+					output.addAlignment(record);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			output.close();
+			for(SamReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+	
+	public static SAMFileWriter makeWriter(SAMFileHeader header, String outputFilename, boolean useBAM) throws IOException {
+		SAMFileWriter output;
+		SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
+		BufferedOutputStream outputFile = new BufferedOutputStream(new FileOutputStream(outputFilename));
+		if(useBAM){
+			output = outputFileFactory.makeBAMWriter(header, false, outputFile);
+		} else {
+			output = outputFileFactory.makeSAMWriter(header, false, outputFile);
+		}
+		return output;
+	}
+	
+	/**
+	 * Soft clip a mapped record for damage, then check it against the target positions. 
+	 * The record is modified by clipping. 
+	 * @param record
+	 * @param softClipLengths null for no clipping
+	 * @param minimumMappingQuality
+	 * @param minimumBaseQuality
+	 * @return true if the record should be kept
+	 */
+	public boolean clipAndFilter(SAMRecord record, Clipping softClipLengths, int minimumMappingQuality, int minimumBaseQuality) {
+		if(!record.getReadUnmappedFlag()) {
+			int softClipBases = (softClipLengths != null) ? softClipLengths.getClippingLength(record) : 0;
+			if(softClipBases > 0)
+				Clipping.softClipBothEndsOfRead(record, softClipBases);
+			return Clipping.isNonEmptyRead(record) && filter(record, minimumMappingQuality, minimumBaseQuality);
+		}
+		return false;
+	}
+	
 	public FilterSAM(String filename) throws IOException {
 		this.readBEDFile(filename);
 	}
 	
+	/**
+	 * Filter sharing target positions with another filter, for use in another thread
+	 * @param positions
+	 */
+	FilterSAM(TargetPositions positions) {
+		this.positions = positions;
+		cursor = positions.cursor();
+	}
+	
 	public void readBEDFile(String filename) throws IOException{
-		features = new OverlapDetector<BEDFeature>(0, 0);
-		BEDCodec bedCodec = new BEDCodec();
-		try(InputStream referenceStream = new FileInputStream(filename);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(referenceStream));
-				){
-			String line;
-			while((line = reader.readLine()) != null){
-				BEDFeature feature = bedCodec.decode(line);
-				features.addLhs(feature, feature);
-			}
-		}
+		positions = TargetPositions.load(filename);
+		cursor = positions.cursor();
 	}
 	
 	/**
@@ -127,23 +249,55 @@ public class FilterSAM {
 	 */
 	public boolean filter(SAMRecord record, int minimumMappingQuality, int minimumBaseQuality) {
 		if(record.getMappingQuality() >= minimumMappingQuality) {
-			Set<BEDFeature> overlappingFeatures = features.getOverlaps(record);
-			for(BEDFeature feature : overlappingFeatures) {
-				boolean sufficientQuality = true;
-				for(int referencePosition = feature.getStart(); referencePosition <= feature.getEnd(); referencePosition++) {
-					int readPosition = record.getReadPositionAtReferencePosition(referencePosition);
-					if(readPosition <= 0) { // 1-based, 0 indicates deletion
-						sufficientQuality = false;
-					} else {
-						AbstractRecordAndOffset baseToCheck = new AbstractRecordAndOffset(record, readPosition-1); // offset is 0-based
-						if(baseToCheck.getBaseQuality() < minimumBaseQuality)
-							sufficientQuality = false;
+			int alignmentStart = record.getAlignmentStart();
+			int alignmentEnd = record.getAlignmentEnd();
+			TargetPositions.Contig contig = cursor.seek(record.getReferenceName(), alignmentStart);
+			if(contig == null)
+				return false;
+			boolean[] sufficientQuality = null;
+			for(int n = cursor.index(); n < contig.size() && contig.start(n) <= alignmentEnd; n++) {
+				if(contig.end(n) >= alignmentStart) {
+					if(sufficientQuality == null)
+						sufficientQuality = sufficientQualityByReferencePosition(record, alignmentStart, alignmentEnd, minimumBaseQuality);
+					boolean featureSufficientQuality = true;
+					for(int referencePosition = contig.start(n); referencePosition <= contig.end(n); referencePosition++) {
+						// positions outside the alignment, deletions, and skipped positions have no read base
+						if(referencePosition < alignmentStart || referencePosition > alignmentEnd
+								|| !sufficientQuality[referencePosition - alignmentStart]) {
+							featureSufficientQuality = false;
+							break;
+						}
 					}
+					if(featureSufficientQuality)
+						return true;
 				}
-				if(sufficientQuality)
-					return true;
 			}
 		}
 		return false;
 	}
+	
+	/**
+	 * Walk the cigar once to find the aligned reference positions with a read base of sufficient quality
+	 * @return array indexed by reference position relative to alignment start
+	 */
+	private static boolean[] sufficientQualityByReferencePosition(SAMRecord record, int alignmentStart, int alignmentEnd, int minimumBaseQuality) {
+		boolean[] sufficientQuality = new boolean[alignmentEnd - alignmentStart + 1];
+		byte[] qualities = record.getBaseQualities();
+		int readOffset = 0;
+		int referenceOffset = 0;
+		for(CigarElement element : record.getCigar().getCigarElements()) {
+			CigarOperator operator = element.getOperator();
+			int length = element.getLength();
+			if(operator.consumesReadBases() && operator.consumesReferenceBases()) {
+				for(int n = 0; n < length; n++) {
+					sufficientQuality[referenceOffset + n] = qualities[readOffset + n] >= minimumBaseQuality;
+				}
+			}
+			if(operator.consumesReadBases())
+				readOffset += length;
+			if(operator.consumesReferenceBases())
+				referenceOffset += length;
+		}
+		return sufficientQuality;
+	}
 }
@@ -0,0 +1,77 @@
+package adnascreen;
+
+import java.text.NumberFormat;
+import java.util.Arrays;
+
+/**
+ * Counts of read lengths. Lengths are small non-negative integers,
+ * so counts are kept in an array indexed by length that grows as needed.
+ * Text output matches the commons-math Frequency format used previously.
+ *
+ */
+public class LengthHistogram {
+	private static final int INITIAL_MAXIMUM_LENGTH = 256;
+
+	private long[] counts;
+	private long total;
+
+	public LengthHistogram(){
+		counts = new long[INITIAL_MAXIMUM_LENGTH];
+		total = 0;
+	}
+
+	public void add(int length){
+		add(length, 1);
+	}
+
+	public void add(int length, long count){
+		if(length < 0)
+			throw new IllegalArgumentException("Negative length: " + length);
+		if(length >= counts.length)
+			counts = Arrays.copyOf(counts, Math.max(length + 1, 2 * counts.length));
+		counts[length] += count;
+		total += count;
+	}
+
+	public void combine(LengthHistogram other){
+		for(int length = other.counts.length - 1; length >= 0; length--){
+			if(other.counts[length] > 0)
+				add(length, other.counts[length]);
+		}
+	}
+
+	public long get(int length){
+		return (length >= 0 && length < counts.length) ? counts[length] : 0;
+	}
+
+	public long getTotal(){
+		return total;
+	}
+
+	/**
+	 * One line for each length with a nonzero count with the count,
+	 * fraction of total, and cumulative fraction of total
+	 */
+	@Override
+	public String toString(){
+		NumberFormat percentFormat = NumberFormat.getPercentInstance();
+		StringBuilder builder = new StringBuilder();
+		builder.append("Value \t Freq. \t Pct. \t Cum Pct. \n");
+		long cumulative = 0;
+		for(int length = 0; length < counts.length; length++){
+			long count = counts[length];
+			if(count > 0){
+				cumulative += count;
+				builder.append(length);
+				builder.append('\t');
+				builder.append(count);
+				builder.append('\t');
+				builder.append(percentFormat.format((double) count / (double) total));
+				builder.append('\t');
+				builder.append(percentFormat.format((double) cumulative / (double) total));
+				builder.append('\n');
+			}
+		}
+		return builder.toString();
+	}
+}
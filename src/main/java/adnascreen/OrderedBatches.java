@@ -0,0 +1,155 @@
+package adnascreen;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import htsjdk.samtools.FileTruncatedException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.RuntimeEOFException;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * Process alignments in batches on a thread pool, with results in input order.
+ * One thread reads batches of records, worker threads process batches,
+ * and the calling thread consumes the results in input order.
+ * Results are bounded so reading does not get far ahead of consuming.
+ * All threads are daemon threads, and they are stopped when the calling thread finishes or fails.
+ *
+ */
+public class OrderedBatches {
+	public static final int BATCH_SIZE = 10000;
+
+	private static final ThreadFactory DAEMON_THREADS = (Runnable r) -> {
+		Thread thread = Executors.defaultThreadFactory().newThread(r);
+		thread.setDaemon(true);
+		return thread;
+	};
+
+	public interface BatchProcessor<T> {
+		/**
+		 * @param batch records in input order
+		 * @param batchStart number of records in the input before this batch
+		 * @return result for the batch
+		 */
+		T process(List<SAMRecord> batch, long batchStart) throws Exception;
+	}
+
+	public interface ResultConsumer<T> {
+		void accept(T result) throws IOException;
+	}
+
+	/**
+	 * Errors decoding one record are printed, and the record is skipped. I/O errors, such as a truncated input file, are thrown.
+	 * Other errors in reading, processing, or consuming are thrown, so this returns only if all input
+	 * was read and all results were consumed, and callers should finalize output only after it returns.
+	 * Input is not read after this returns or throws.
+	 * @param input records, read on the input thread
+	 * @param numThreads number of worker threads
+	 * @param processor run on worker threads
+	 * @param consumer run on the calling thread, in input order
+	 * @throws ExecutionException with the cause of a reading or processing error
+	 */
+	public static <T> void run(Iterator<SAMRecord> input, int numThreads, BatchProcessor<T> processor, ResultConsumer<T> consumer) throws InterruptedException, ExecutionException, IOException {
+		BlockingQueue<Future<T>> results = new ArrayBlockingQueue<Future<T>>(2 * numThreads);
+		Future<T> endOfInput = CompletableFuture.completedFuture(null);
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		ExecutorService inputThread = Executors.newSingleThreadExecutor(DAEMON_THREADS);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads, DAEMON_THREADS);
+		try {
+			inputThread.execute(() -> {
+				try {
+					List<SAMRecord> batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+					long recordNumber = 0;
+					long batchStart = 0;
+					while(!stopped.get() && input.hasNext()){
+						try{
+							batch.add(input.next());
+							recordNumber++;
+						}
+						catch(FileTruncatedException | RuntimeIOException | RuntimeEOFException e){
+							throw e;
+						}
+						catch(Exception e){
+							System.err.println(e.toString());
+						}
+						if(batch.size() == BATCH_SIZE){
+							put(results, submitBatch(pool, processor, batch, batchStart), stopped);
+							batch = new ArrayList<SAMRecord>(BATCH_SIZE);
+							batchStart = recordNumber;
+						}
+					}
+					if(batch.size() > 0)
+						put(results, submitBatch(pool, processor, batch, batchStart), stopped);
+					// only after all input is read successfully
+					put(results, endOfInput, stopped);
+				} catch(InterruptedException e) {
+					// the calling thread stopped consuming
+				} catch(Throwable t) {
+					CompletableFuture<T> failed = new CompletableFuture<T>();
+					failed.completeExceptionally(t);
+					try {
+						put(results, failed, stopped);
+					} catch(InterruptedException e) {
+						// the calling thread stopped consuming
+					}
+				}
+			});
+
+			while(true) {
+				Future<T> result = results.take();
+				if(result == endOfInput)
+					break;
+				consumer.accept(result.get());
+			}
+		} finally {
+			stopped.set(true);
+			inputThread.shutdownNow();
+			pool.shutdownNow();
+			// the caller may close the input after this returns
+			inputThread.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * Wait for space in the results queue, unless the calling thread has stopped consuming
+	 */
+	private static <T> void put(BlockingQueue<Future<T>> results, Future<T> result, AtomicBoolean stopped) throws InterruptedException {
+		while(!results.offer(result, 100, TimeUnit.MILLISECONDS)) {
+			if(stopped.get())
+				throw new InterruptedException();
+		}
+	}
+
+	private static <T> Future<T> submitBatch(ExecutorService pool, BatchProcessor<T> processor, List<SAMRecord> batch, long batchStart) {
+		return pool.submit(() -> processor.process(batch, batchStart));
+	}
+
+	/**
+	 * Close output after a failure, and delete the file so incomplete output is not mistaken for complete output
+	 * @param output
+	 * @param filename
+	 * @param failure exceptions from closing are added to this as suppressed
+	 */
+	public static void discardOutput(Closeable output, String filename, Exception failure) {
+		try {
+			output.close();
+		} catch(Exception e) {
+			failure.addSuppressed(e);
+		}
+		new File(filename).delete();
+	}
+}
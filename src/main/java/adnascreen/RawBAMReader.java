@@ -0,0 +1,363 @@
+package adnascreen;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BufferedLineReader;
+
+/**
+ * Read the records of a BAM file as raw bytes, without decoding them into SAMRecords.
+ * For tools that need only a few fields, such as read names or flags.
+ * The current record can be edited in place and written to another BAM file.
+ * Offsets of fields within a record are from the BAM specification, after the block_size field.
+ *
+ */
+public class RawBAMReader implements Closeable {
+	public static final int REFERENCE_ID_OFFSET = 0;
+	public static final int POSITION_OFFSET = 4;
+	public static final int READ_NAME_LENGTH_OFFSET = 8;
+	public static final int MAPPING_QUALITY_OFFSET = 9;
+	public static final int CIGAR_OPERATIONS_OFFSET = 12;
+	public static final int FLAG_OFFSET = 14;
+	public static final int SEQUENCE_LENGTH_OFFSET = 16;
+	public static final int READ_NAME_OFFSET = 32;
+
+	private final BlockCompressedInputStream input;
+	private final SAMFileHeader header;
+	private final byte[] intBytes = new byte[4];
+	private byte[] record = new byte[1024];
+	private int recordLength = 0;
+
+	public RawBAMReader(File bam) throws IOException {
+		input = new BlockCompressedInputStream(new BufferedInputStream(new FileInputStream(bam)));
+		try {
+			header = readHeader(bam.getPath());
+		} catch(IOException | RuntimeException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return true if file is BGZF compressed and starts with the BAM magic number
+	 */
+	public static boolean isBAM(File file) throws IOException {
+		try(BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))){
+			if(!BlockCompressedInputStream.isValidFile(in))
+				return false;
+			try(InputStream uncompressed = new BlockCompressedInputStream(in)){
+				byte[] magic = new byte[BAMBody.BAM_MAGIC.length];
+				return readFully(uncompressed, magic, 0, magic.length) && Arrays.equals(BAMBody.BAM_MAGIC, magic);
+			}
+		}
+	}
+
+	private SAMFileHeader readHeader(String source) throws IOException {
+		byte[] magic = new byte[BAMBody.BAM_MAGIC.length];
+		if(!readFully(input, magic, 0, magic.length) || !Arrays.equals(BAMBody.BAM_MAGIC, magic))
+			throw new SAMFormatException("Invalid BAM file header: " + source);
+		byte[] text = new byte[readInt()];
+		readFullyOrThrow(text, text.length);
+		int numReferences = readInt();
+		List<SAMSequenceRecord> references = new ArrayList<SAMSequenceRecord>(numReferences);
+		for(int n = 0; n < numReferences; n++) {
+			byte[] name = new byte[readInt()];
+			readFullyOrThrow(name, name.length);
+			int length = readInt();
+			// name includes null terminator
+			references.add(new SAMSequenceRecord(new String(name, 0, name.length - 1, StandardCharsets.US_ASCII), length));
+		}
+		SAMFileHeader header = new SAMTextHeaderCodec().decode(BufferedLineReader.fromString(new String(text, StandardCharsets.US_ASCII)), source);
+		if(header.getSequenceDictionary().isEmpty() && !references.isEmpty())
+			header.setSequenceDictionary(new SAMSequenceDictionary(references));
+		return header;
+	}
+
+	public SAMFileHeader getFileHeader() {
+		return header;
+	}
+
+	/**
+	 * @return BGZF virtual file pointer of the next record
+	 */
+	public long getFilePointer() {
+		return input.getFilePointer();
+	}
+
+	/**
+	 * Read the next record into the record buffer
+	 * @return false at end of file
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if(!readFully(input, intBytes, 0, 4)) {
+			recordLength = 0;
+			return false;
+		}
+		recordLength = getInt(intBytes, 0);
+		if(recordLength < READ_NAME_OFFSET)
+			throw new SAMFormatException("Invalid BAM record length: " + recordLength);
+		if(recordLength > record.length)
+			record = new byte[Math.max(recordLength, 2 * record.length)];
+		readFullyOrThrow(record, recordLength);
+		return true;
+	}
+
+	/**
+	 * @return buffer holding the current record, starting at offset 0. The buffer is reused by next().
+	 */
+	public byte[] getRecordBuffer() {
+		return record;
+	}
+
+	/**
+	 * @return length of current record in bytes, excluding the block_size field
+	 */
+	public int getRecordLength() {
+		return recordLength;
+	}
+
+	public int getReferenceIndex() {
+		return getInt(record, REFERENCE_ID_OFFSET);
+	}
+
+	/**
+	 * @return 1-based alignment start
+	 */
+	public int getAlignmentStart() {
+		return getInt(record, POSITION_OFFSET) + 1;
+	}
+
+	public int getFlags() {
+		return getUnsignedShort(record, FLAG_OFFSET);
+	}
+
+	public String getReadName() {
+		// length includes null terminator
+		int length = (record[READ_NAME_LENGTH_OFFSET] & 0xff) - 1;
+		return new String(record, READ_NAME_OFFSET, length, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return offset of the first auxiliary tag in the current record
+	 */
+	public int getAuxiliaryOffset() {
+		int readNameLength = record[READ_NAME_LENGTH_OFFSET] & 0xff;
+		int numCigarOperations = getUnsignedShort(record, CIGAR_OPERATIONS_OFFSET);
+		int sequenceLength = getInt(record, SEQUENCE_LENGTH_OFFSET);
+		return READ_NAME_OFFSET + readNameLength + 4 * numCigarOperations + (sequenceLength + 1) / 2 + sequenceLength;
+	}
+
+	/**
+	 * Find an auxiliary tag in the current record, without decoding other fields
+	 * @param tag two character tag
+	 * @return offset of the tag's type character, or -1 if the record does not have the tag
+	 */
+	public int findTag(String tag) {
+		byte first = (byte) tag.charAt(0);
+		byte second = (byte) tag.charAt(1);
+		int offset = getAuxiliaryOffset();
+		while(offset + 3 <= recordLength) {
+			if(record[offset] == first && record[offset + 1] == second)
+				return offset + 2;
+			offset = valueEnd(offset + 2);
+		}
+		return -1;
+	}
+
+	/**
+	 * @param typeOffset offset of a tag's type character
+	 * @return offset following the tag's value
+	 */
+	private int valueEnd(int typeOffset) {
+		int valueOffset = typeOffset + 1;
+		switch(record[typeOffset]) {
+		case 'A':
+		case 'c':
+		case 'C':
+			return valueOffset + 1;
+		case 's':
+		case 'S':
+			return valueOffset + 2;
+		case 'i':
+		case 'I':
+		case 'f':
+			return valueOffset + 4;
+		case 'Z':
+		case 'H':
+			int end = valueOffset;
+			while(end < recordLength && record[end] != 0)
+				end++;
+			return end + 1; // null terminator
+		case 'B':
+			// array subtype has the size of the corresponding single value type
+			int elementSize = valueEnd(valueOffset) - valueOffset - 1;
+			int count = getInt(record, valueOffset + 1);
+			return valueOffset + 5 + elementSize * count;
+		default:
+			throw new SAMFormatException("Invalid tag type " + (char) record[typeOffset] + " in " + getReadName());
+		}
+	}
+
+	/**
+	 * @param typeOffset offset of a float tag's type character, from findTag
+	 * @return tag value
+	 */
+	public float getFloatTag(int typeOffset) {
+		if(record[typeOffset] != 'f')
+			throw new SAMFormatException("Tag is not a float: " + (char) record[typeOffset - 2] + (char) record[typeOffset - 1] + " in " + getReadName());
+		return Float.intBitsToFloat(getInt(record, typeOffset + 1));
+	}
+
+	/**
+	 * @param tag
+	 * @return value of a string tag in the current record, or null if the record does not have the tag
+	 */
+	public String getStringTag(String tag) {
+		int typeOffset = findTag(tag);
+		if(typeOffset < 0)
+			return null;
+		if(record[typeOffset] != 'Z')
+			throw new SAMFormatException("Tag is not a string: " + tag + " in " + getReadName());
+		int end = valueEnd(typeOffset) - 1; // null terminator
+		return new String(record, typeOffset + 1, end - typeOffset - 1, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return number of bases in the current record
+	 */
+	public int getReadLength() {
+		return getInt(record, SEQUENCE_LENGTH_OFFSET);
+	}
+
+	/**
+	 * Shorten the read name of the current record in place
+	 * @param length new read name length, no longer than the current length
+	 */
+	public void truncateReadName(int length) {
+		int oldLength = record[READ_NAME_LENGTH_OFFSET] & 0xff; // includes null terminator
+		int newLength = length + 1;
+		if(newLength > oldLength || length < 1)
+			throw new IllegalArgumentException("Invalid read name length " + length + " for " + getReadName());
+		int restOffset = READ_NAME_OFFSET + oldLength;
+		System.arraycopy(record, restOffset, record, READ_NAME_OFFSET + newLength, recordLength - restOffset);
+		record[READ_NAME_OFFSET + length] = 0;
+		record[READ_NAME_LENGTH_OFFSET] = (byte) newLength;
+		recordLength -= oldLength - newLength;
+	}
+
+	/**
+	 * Set a string tag in the current record in place, replacing any existing value. 
+	 * The tag is placed where SAMRecord.setAttribute would place it, so records written 
+	 * after either change have the same bytes. 
+	 * @param tag
+	 * @param value
+	 */
+	public void setStringTag(String tag, String value) {
+		int binaryTag = tag.charAt(1) << 8 | tag.charAt(0);
+		// htsjdk inserts before the first tag with a larger binary value, or replaces an equal tag
+		int offset = getAuxiliaryOffset();
+		int replacedEnd = offset;
+		while(offset + 3 <= recordLength) {
+			int existingTag = getUnsignedShort(record, offset);
+			int end = valueEnd(offset + 2);
+			if(existingTag > binaryTag) {
+				replacedEnd = offset;
+				break;
+			} else if(existingTag == binaryTag) {
+				replacedEnd = end;
+				break;
+			}
+			offset = end;
+			replacedEnd = offset;
+		}
+		// tag, type, value, null terminator
+		int newLength = 3 + value.length() + 1;
+		int lengthChange = newLength - (replacedEnd - offset);
+		if(recordLength + lengthChange > record.length)
+			record = Arrays.copyOf(record, Math.max(recordLength + lengthChange, 2 * record.length));
+		System.arraycopy(record, replacedEnd, record, replacedEnd + lengthChange, recordLength - replacedEnd);
+		record[offset] = (byte) tag.charAt(0);
+		record[offset + 1] = (byte) tag.charAt(1);
+		record[offset + 2] = 'Z';
+		for(int n = 0; n < value.length(); n++) {
+			record[offset + 3 + n] = (byte) value.charAt(n);
+		}
+		record[offset + 3 + value.length()] = 0;
+		recordLength += lengthChange;
+	}
+
+	/**
+	 * Write the current record, with its block_size field, to an uncompressed BAM stream
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeRecord(OutputStream output) throws IOException {
+		output.write(recordLength);
+		output.write(recordLength >>> 8);
+		output.write(recordLength >>> 16);
+		output.write(recordLength >>> 24);
+		output.write(record, 0, recordLength);
+	}
+
+	public static int getInt(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff)
+				| (buffer[offset + 1] & 0xff) << 8
+				| (buffer[offset + 2] & 0xff) << 16
+				| (buffer[offset + 3] & 0xff) << 24;
+	}
+
+	public static int getUnsignedShort(byte[] buffer, int offset) {
+		return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8;
+	}
+
+	private int readInt() throws IOException {
+		readFullyOrThrow(intBytes, 4);
+		return getInt(intBytes, 0);
+	}
+
+	private void readFullyOrThrow(byte[] buffer, int length) throws IOException {
+		if(!readFully(input, buffer, 0, length))
+			throw new EOFException("Unexpected end of BAM file");
+	}
+
+	/**
+	 * @return false if the stream ended before any bytes were read
+	 * @throws EOFException if the stream ended after some bytes were read
+	 */
+	private static boolean readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		int bytesRead = 0;
+		while(bytesRead < length) {
+			int n = in.read(buffer, offset + bytesRead, length - bytesRead);
+			if(n < 0) {
+				if(bytesRead == 0)
+					return false;
+				throw new EOFException("Unexpected end of BAM file");
+			}
+			bytesRead += n;
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+}
@@ -2,9 +2,16 @@ package adnascreen;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
@@ -23,6 +30,10 @@ import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 
 public class ReadGroupRewrite {
 	/**
@@ -56,6 +67,11 @@ public class ReadGroupRewrite {
 		String sequencingCenter = commandLine.getOptionValue("sequencing-center");
 		String sequencingPlatform = commandLine.getOptionValue("sequencing-platform");
 		
+		if(useBAM && RawBAMReader.isBAM(new File(filename))) {
+			rewriteRaw(filename, outputFilename, sampleID, library, sequencingCenter, sequencingPlatform, args);
+			return;
+		}
+		
 		SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
 		
 		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(filename)));
@@ -64,59 +80,7 @@ public class ReadGroupRewrite {
 				SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
 		){
 			header = reader.getFileHeader();
-			List<SAMReadGroupRecord> readGroups = header.getReadGroups();
-			// alter read groups according to command line parameters
-			for (SAMReadGroupRecord readGroup : readGroups) {
-				// silently remove platform values that violate specification
-				try {
-					SAMReadGroupRecord.PlatformValue.valueOf(readGroup.getPlatform());
-				}
-				catch(IllegalArgumentException e) {
-					readGroup.setPlatform(null);
-				}
-				
-				// replace any specified options
-				if(sampleID != null) {
-					readGroup.setSample(sampleID);
-				}
-				if(library != null) {
-					readGroup.setLibrary(library);
-				}
-				if(sequencingCenter != null) {
-					readGroup.setSequencingCenter(sequencingCenter);
-				}
-				if(sequencingPlatform != null) {
-					// check that any platform entered is valid
-					SAMReadGroupRecord.PlatformValue.valueOf(sequencingPlatform);
-					readGroup.setPlatform(sequencingPlatform);
-				}
-			}
-			// add program group header
-			List<SAMProgramRecord> programEntries = header.getProgramRecords();
-			// ensure unique ID
-			int count = 0;
-			boolean found;
-			String candidateID;
-			do {
-				count++;
-				found = false;
-				candidateID = Driver.PROGRAM_NAME + '.' + count;
-				for(SAMProgramRecord entry : programEntries) {
-					if(entry.getId().equals(candidateID)) {
-						found = true;
-						break;
-					}
-				}
-			} while(found);
-			
-			SAMProgramRecord programEntry = new SAMProgramRecord(candidateID);
-			programEntry.setProgramVersion(Driver.versionString());
-			programEntry.setCommandLine("ReadGroupRewrite" + String.join(" ", args));
-			programEntry.setProgramName("ReadGroupRewrite");
-			// chain program entry to last entry
-			if(programEntries.size() > 0)
-				programEntry.setPreviousProgramGroupId(programEntries.get(programEntries.size()-1).getId());
-			header.addProgramRecord(programEntry);
+			rewriteHeader(header, sampleID, library, sequencingCenter, sequencingPlatform, args);
 			
 			// rewrite alignment file with new header
 			SAMFileWriter output;
@@ -135,5 +99,110 @@ public class ReadGroupRewrite {
 			output.close();
 		}
 	}
+	
+	/**
+	 * Rewrite BAM to BAM, changing only the header. Records are never decoded. 
+	 * Compressed blocks holding only records are copied unchanged. 
+	 * If records start inside the last header block, as htsjdk writes them, the rest of that block is recompressed. 
+	 * Records are copied in input order. 
+	 */
+	public static void rewriteRaw(String filename, String outputFilename, String sampleID, String library, String sequencingCenter, String sequencingPlatform, String[] args) throws IOException {
+		File input = new File(filename);
+		try(RawBAMReader reader = new RawBAMReader(input);
+				OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFilename));
+				){
+			SAMFileHeader header = reader.getFileHeader();
+			rewriteHeader(header, sampleID, library, sequencingCenter, sequencingPlatform, args);
+			BAMBody.writeHeaderBlocks(output, header, BlockCompressedOutputStream.getDefaultCompressionLevel());
+			
+			long recordsStart = reader.getFilePointer();
+			long nextBlock = BlockCompressedFilePointerUtil.getBlockAddress(recordsStart);
+			if(BlockCompressedFilePointerUtil.getBlockOffset(recordsStart) > 0) {
+				// records start inside a block shared with the header, so recompress the rest of that block
+				try(BlockCompressedInputStream blocks = new BlockCompressedInputStream(input)){
+					blocks.seek(recordsStart);
+					byte[] rest = new byte[blocks.available()];
+					int bytesRead = 0;
+					while(bytesRead < rest.length) {
+						bytesRead += blocks.read(rest, bytesRead, rest.length - bytesRead);
+					}
+					BlockCompressedOutputStream restOfBlock = new BlockCompressedOutputStream(new BAMBody.UnclosedOutputStream(output), (Path) null);
+					restOfBlock.write(rest);
+					restOfBlock.close(false);
+					nextBlock = BlockCompressedFilePointerUtil.getBlockAddress(blocks.getFilePointer());
+				}
+			}
+			// later blocks hold only records
+			try(FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)){
+				WritableByteChannel target = Channels.newChannel(output);
+				long position = nextBlock;
+				long size = channel.size();
+				while(position < size) {
+					position += channel.transferTo(position, size - position, target);
+				}
+			}
+			if(BlockCompressedInputStream.checkTermination(input) != BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK)
+				output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		}
+	}
+	
+	/**
+	 * Alter read groups according to command line parameters and add a program group
+	 */
+	static void rewriteHeader(SAMFileHeader header, String sampleID, String library, String sequencingCenter, String sequencingPlatform, String[] args) {
+		List<SAMReadGroupRecord> readGroups = header.getReadGroups();
+		// alter read groups according to command line parameters
+		for (SAMReadGroupRecord readGroup : readGroups) {
+			// silently remove platform values that violate specification
+			try {
+				SAMReadGroupRecord.PlatformValue.valueOf(readGroup.getPlatform());
+			}
+			catch(IllegalArgumentException e) {
+				readGroup.setPlatform(null);
+			}
+			
+			// replace any specified options
+			if(sampleID != null) {
+				readGroup.setSample(sampleID);
+			}
+			if(library != null) {
+				readGroup.setLibrary(library);
+			}
+			if(sequencingCenter != null) {
+				readGroup.setSequencingCenter(sequencingCenter);
+			}
+			if(sequencingPlatform != null) {
+				// check that any platform entered is valid
+				SAMReadGroupRecord.PlatformValue.valueOf(sequencingPlatform);
+				readGroup.setPlatform(sequencingPlatform);
+			}
+		}
+		// add program group header
+		List<SAMProgramRecord> programEntries = header.getProgramRecords();
+		// ensure unique ID
+		int count = 0;
+		boolean found;
+		String candidateID;
+		do {
+			count++;
+			found = false;
+			candidateID = Driver.PROGRAM_NAME + '.' + count;
+			for(SAMProgramRecord entry : programEntries) {
+				if(entry.getId().equals(candidateID)) {
+					found = true;
+					break;
+				}
+			}
+		} while(found);
+		
+		SAMProgramRecord programEntry = new SAMProgramRecord(candidateID);
+		programEntry.setProgramVersion(Driver.versionString());
+		programEntry.setCommandLine("ReadGroupRewrite" + String.join(" ", args));
+		programEntry.setProgramName("ReadGroupRewrite");
+		// chain program entry to last entry
+		if(programEntries.size() > 0)
+			programEntry.setPreviousProgramGroupId(programEntries.get(programEntries.size()-1).getId());
+		header.addProgramRecord(programEntry);
+	}
 
 }
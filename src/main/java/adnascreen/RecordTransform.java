@@ -0,0 +1,31 @@
+package adnascreen;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * One step of a chain of record transforms, applied to each alignment in input order.
+ * A transform may modify the record in place.
+ *
+ */
+public interface RecordTransform {
+	/**
+	 * @param record
+	 * @return the transformed record, or null if the record is dropped
+	 */
+	SAMRecord apply(SAMRecord record);
+
+	/**
+	 * Transforms with per-record state, such as a position cursor, return a copy for each worker thread
+	 * @return transform to use on another thread
+	 */
+	default RecordTransform forThread() {
+		return this;
+	}
+
+	/**
+	 * @return true if the transform can change alignment start positions, so coordinate-sorted output must be re-sorted
+	 */
+	default boolean movesAlignments() {
+		return false;
+	}
+}
@@ -0,0 +1,96 @@
+package adnascreen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+
+/**
+ * Split work on indexed, coordinate-sorted alignment files by reference sequence.
+ * Each reference sequence is processed concurrently, and results are returned in
+ * sequence dictionary order so they can be merged deterministically.
+ *
+ */
+public class ReferenceSharding {
+	public interface ReferenceTask<T> {
+		/**
+		 * Process all alignments to one reference sequence.
+		 * Tasks run concurrently, so each must open its own readers.
+		 * @param reference
+		 * @return result for this reference sequence
+		 * @throws Exception
+		 */
+		T process(SAMSequenceRecord reference) throws Exception;
+	}
+
+	/**
+	 * Open an alignment file for random access queries
+	 * @param filename
+	 * @return reader with an index
+	 * @throws IOException
+	 */
+	public static SamReader openIndexed(String filename) throws IOException {
+		return openIndexed(filename, null);
+	}
+
+	/**
+	 * Open an alignment file for random access queries
+	 * @param filename
+	 * @param reference CRAM reference, or null
+	 * @return reader with an index
+	 * @throws IOException
+	 */
+	public static SamReader openIndexed(String filename, CRAMReferenceSource reference) throws IOException {
+		SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault();
+		if(reference != null)
+			samReaderFactory.referenceSource(reference);
+		SamReader reader = samReaderFactory.open(new File(filename));
+		if(!reader.hasIndex()) {
+			reader.close();
+			throw new IllegalArgumentException("Index required for " + filename);
+		}
+		return reader;
+	}
+
+	/**
+	 * Run task for each reference sequence in the dictionary
+	 * @param dictionary
+	 * @param numThreads
+	 * @param task
+	 * @return results in dictionary order
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static <T> List<T> forEachReference(SAMSequenceDictionary dictionary, int numThreads, ReferenceTask<T> task) throws InterruptedException, ExecutionException {
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>(dictionary.size());
+			for(SAMSequenceRecord reference : dictionary.getSequences()) {
+				futures.add(pool.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return task.process(reference);
+					}
+				}));
+			}
+			List<T> results = new ArrayList<T>(futures.size());
+			for(Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -5,23 +5,28 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.math3.stat.Frequency;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -31,13 +36,17 @@ import htsjdk.samtools.SamReaderFactory;
  *
  */
 public class SAMStats {
-	private Frequency lengthHistogram;
+	private LengthHistogram lengthHistogram;
 	// each alignment may map to multiple targets
 	private Map<String, Set<String> > referenceNamesToTargetClasses;
 	SampleSetsCounter counter;
+	// state for counting alignments one at a time
+	private SAMSequenceDictionary dictionary;
+	private int minimumMappingQuality;
+	private AlignmentCounts pendingCounts;
 
-	public SAMStats(String keyString, String filename, JSONObject targets, int minimumMappingQuality) throws IOException{
-		lengthHistogram = new Frequency();
+	private SAMStats(JSONObject targets){
+		lengthHistogram = new LengthHistogram();
 		counter = new SampleSetsCounter();
 		referenceNamesToTargetClasses = new HashMap<String, Set<String> >();
 		
@@ -54,43 +63,171 @@ public class SAMStats {
 				addReferenceToTargetClass(referenceName, targetClass);
 			} 
 		}
+	}
+	
+	public SAMStats(String keyString, String filename, JSONObject targets, int minimumMappingQuality) throws IOException{
+		this(targets);
 		
 		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(filename)));
 		try(
 				SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile);
 				){
-			//SAMFileHeader header = reader.getFileHeader();
-			//SAMSequenceDictionary currentAlignmentReference = header.getSequenceDictionary();
+			startCounting(reader.getFileHeader().getSequenceDictionary(), minimumMappingQuality);
 
 			SAMRecordIterator i = reader.iterator();
 			while(i.hasNext()){
 				// iterate through alignments
 				try{
 					SAMRecord record = i.next();
-					if(!record.getReadUnmappedFlag()){ // read is mapped
-						int mappingQuality = record.getMappingQuality();
-						if(mappingQuality >= minimumMappingQuality){
-							// record length
-							int readLength = record.getReadLength();
-							lengthHistogram.addValue(readLength);
-							// count alignments to reference sequences 
-							String referenceName = record.getReferenceName();
-							Set<String> targetClassesToCount = referenceNamesToTargetClasses.get(referenceName);
-							if(targetClassesToCount != null){
-								for(String targetClass : targetClassesToCount){
-									counter.increment(keyString, targetClass);
-									String targetCoverageLabel = targetClass + "-coverageLength";
-									counter.add(keyString, targetCoverageLabel, readLength);
-								}
-							}
-							//System.out.println(referenceName + "\t" + targetClass);
-						}
-					}
+					add(record);
 				} catch (SAMFormatException e){
 					System.err.println(e);
 					// ignore this record and continue to the next
 				}
 			}
+			finishCounting(keyString);
+		}
+	}
+	
+	/**
+	 * Prepare to count alignments passed one at a time with add
+	 * @param targets
+	 * @param dictionary
+	 * @param minimumMappingQuality
+	 */
+	public SAMStats(JSONObject targets, SAMSequenceDictionary dictionary, int minimumMappingQuality){
+		this(targets);
+		startCounting(dictionary, minimumMappingQuality);
+	}
+	
+	private void startCounting(SAMSequenceDictionary dictionary, int minimumMappingQuality){
+		this.dictionary = dictionary;
+		this.minimumMappingQuality = minimumMappingQuality;
+		pendingCounts = new AlignmentCounts(dictionary.size());
+	}
+	
+	public void add(SAMRecord record){
+		pendingCounts.add(record, minimumMappingQuality);
+	}
+	
+	/**
+	 * Convert counts of alignments passed with add into statistics for this key
+	 * @param keyString
+	 */
+	public void finishCounting(String keyString){
+		countTargets(keyString, dictionary, pendingCounts);
+		pendingCounts = null;
+	}
+	
+	/**
+	 * Count alignments in an indexed, coordinate-sorted BAM, splitting work across threads by reference sequence.
+	 * Results are the same as for a single pass through the file. 
+	 */
+	public SAMStats(String keyString, String filename, JSONObject targets, int minimumMappingQuality, int numThreads) throws IOException, InterruptedException, ExecutionException{
+		this(targets);
+		
+		SAMSequenceDictionary dictionary;
+		try(SamReader reader = ReferenceSharding.openIndexed(filename)){
+			dictionary = reader.getFileHeader().getSequenceDictionary();
+		}
+		List<AlignmentCounts> shards = ReferenceSharding.forEachReference(dictionary, numThreads, (SAMSequenceRecord reference) -> {
+			AlignmentCounts shardCounts = new AlignmentCounts(dictionary.size());
+			try(
+					SamReader reader = ReferenceSharding.openIndexed(filename);
+					SAMRecordIterator i = reader.queryOverlapping(reference.getSequenceName(), 0, 0);
+					){
+				while(i.hasNext()){
+					try{
+						SAMRecord record = i.next();
+						shardCounts.add(record, minimumMappingQuality);
+					} catch (SAMFormatException e){
+						System.err.println(e);
+					}
+				}
+			}
+			return shardCounts;
+		});
+		// shards are in dictionary order, which is the order references are seen in a sorted file
+		AlignmentCounts counts = new AlignmentCounts(dictionary.size());
+		for(AlignmentCounts shard : shards){
+			counts.combine(shard);
+		}
+		countTargets(keyString, dictionary, counts);
+	}
+	
+	/**
+	 * Primitive counts of mapped alignments by reference index
+	 */
+	private static class AlignmentCounts {
+		final LengthHistogram lengths = new LengthHistogram();
+		final long[] alignmentsByReference;
+		final long[] coverageLengthByReference;
+		// labels are output in the order they are first counted
+		final int[] referencesInOrderSeen;
+		int numReferencesSeen = 0;
+		
+		AlignmentCounts(int numReferences){
+			alignmentsByReference = new long[numReferences];
+			coverageLengthByReference = new long[numReferences];
+			referencesInOrderSeen = new int[numReferences];
+		}
+		
+		void add(SAMRecord record, int minimumMappingQuality){
+			if(!record.getReadUnmappedFlag() && record.getMappingQuality() >= minimumMappingQuality){
+				int readLength = record.getReadLength();
+				lengths.add(readLength);
+				add(record.getReferenceIndex(), 1, readLength);
+			}
+		}
+		
+		void add(int referenceIndex, long alignments, long coverageLength){
+			if(alignmentsByReference[referenceIndex] == 0)
+				referencesInOrderSeen[numReferencesSeen++] = referenceIndex;
+			alignmentsByReference[referenceIndex] += alignments;
+			coverageLengthByReference[referenceIndex] += coverageLength;
+		}
+		
+		void combine(AlignmentCounts other){
+			lengths.combine(other.lengths);
+			for(int n = 0; n < other.numReferencesSeen; n++){
+				int referenceIndex = other.referencesInOrderSeen[n];
+				add(referenceIndex, other.alignmentsByReference[referenceIndex], other.coverageLengthByReference[referenceIndex]);
+			}
+		}
+	}
+	
+	/**
+	 * Convert counts by reference into counts by target class. 
+	 * Target class lookups are by reference index instead of name.
+	 */
+	private void countTargets(String keyString, SAMSequenceDictionary dictionary, AlignmentCounts counts){
+		lengthHistogram.combine(counts.lengths);
+		
+		int[][] targetClassesByReference = new int[dictionary.size()][];
+		List<String> targetLabels = new ArrayList<String>();
+		List<String> targetCoverageLabels = new ArrayList<String>();
+		for(SAMSequenceRecord reference : dictionary.getSequences()){
+			Set<String> targetClasses = referenceNamesToTargetClasses.getOrDefault(reference.getSequenceName(), Collections.emptySet());
+			int[] targetIndices = new int[targetClasses.size()];
+			int n = 0;
+			for(String targetClass : targetClasses){
+				int targetIndex = targetLabels.indexOf(targetClass);
+				if(targetIndex < 0){
+					targetIndex = targetLabels.size();
+					targetLabels.add(targetClass);
+					targetCoverageLabels.add(targetClass + "-coverageLength");
+				}
+				targetIndices[n++] = targetIndex;
+			}
+			targetClassesByReference[reference.getSequenceIndex()] = targetIndices;
+		}
+		
+		for(int n = 0; n < counts.numReferencesSeen; n++){
+			int referenceIndex = counts.referencesInOrderSeen[n];
+			for(int targetIndex : targetClassesByReference[referenceIndex]){
+				counter.add(keyString, targetLabels.get(targetIndex), counts.alignmentsByReference[referenceIndex]);
+				counter.add(keyString, targetCoverageLabels.get(targetIndex), counts.coverageLengthByReference[referenceIndex]);
+			}
 		}
 	}
 	
@@ -106,22 +243,32 @@ public class SAMStats {
 		return counter.toString();
 	}
 	
-	public static void main(String []args) throws IOException, ParseException{
+	public String lengthHistogramString(){
+		return lengthHistogram.toString();
+	}
+	
+	public static void main(String []args) throws IOException, ParseException, InterruptedException, ExecutionException{
 		CommandLineParser parser = new DefaultParser();
 		Options options = new Options();
 		options.addRequiredOption("f", "filename", true, "input SAM/BAM filename");
 		options.addRequiredOption("t", "targets", true, "JSON object for targets: key is label, value is reference name or array of reference names");
 		options.addOption("l", "length-histogram", true, "filename for length distribution histogram");
 		options.addOption("q", "mapping-quality", true, "minimum Phred score mapping quality");
+		options.addOption("n", "threads", true, "Number of threads for an indexed, coordinate-sorted BAM; work is split by reference sequence");
 		CommandLine commandLine	= parser.parse( options, args );
 		
 		String filename = commandLine.getOptionValue('f');
 		JSONObject targets = new JSONObject(commandLine.getOptionValue('t'));
 		String histogramFilename = commandLine.getOptionValue('l');
 		int minimumMappingQuality = Integer.valueOf(commandLine.getOptionValue('q', "0"));
+		int numThreads = Integer.valueOf(commandLine.getOptionValue('n', "1"));
 		
 		String keyString = ReadMarkDuplicatesStatistics.keyFromFilename(filename);
-		SAMStats stats = new SAMStats(keyString, filename, targets, minimumMappingQuality);
+		SAMStats stats;
+		if(numThreads > 1)
+			stats = new SAMStats(keyString, filename, targets, minimumMappingQuality, numThreads);
+		else
+			stats = new SAMStats(keyString, filename, targets, minimumMappingQuality);
 		System.out.println(stats.toString());
 		
 		if(histogramFilename != null){
@@ -129,7 +276,7 @@ public class SAMStats {
 					FileWriter histogramFile = new FileWriter(histogramFilename);
 					PrintWriter w = new PrintWriter(histogramFile)
 					){
-				w.println(stats.lengthHistogram.toString());
+				w.println(stats.lengthHistogramString());
 			}
 		}
 	}
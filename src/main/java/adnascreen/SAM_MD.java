@@ -1,11 +1,9 @@
 package adnascreen;
 
-import java.util.LinkedList;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * For manipulating the optional SAM field MD 
+ * For manipulating the optional SAM field MD
  *
  */
 public class SAM_MD {
@@ -13,91 +11,144 @@ public class SAM_MD {
 	public static String VALIDATION = "[0-9]+(([A-Z]|\\^[A-Z]+)[0-9]+)*";
 	public static String DIGITS = "[0-9]+";
 	public static String MISMATCH = "([A-Z]|\\^[A-Z]+)";
-	
+
 	public static Pattern VALIDATION_REGEX = Pattern.compile(VALIDATION);
 	public static Pattern DIGITS_REGEX = Pattern.compile(DIGITS);
 	public static Pattern MISMATCH_REGEX = Pattern.compile(MISMATCH);
-	
+
+	private static final char MATCH = 'm';
+
+	// reference positions are stored as runs, one per element
+	// m: run of matching positions, with the run length in lengths
 	// A, T, C, G reference was this base and mismatched read
 	// read inserts will not appear in MD string
 	// a, t, c, g reference was this base and was deleted in read
-	private LinkedList<Character> positions;
-	
+	private char[] elements;
+	private int[] lengths;
+	// elements remaining after clipping are [first, last]
+	private int first;
+	private int last;
+	private int editDistance;
+
 	public SAM_MD(String md_field){
-		Matcher validator = VALIDATION_REGEX.matcher(md_field);
-		if(!validator.matches())
-			throw new IllegalArgumentException();
-		
-		positions = new LinkedList<Character>();
-		
-		String remaining = md_field.trim();
-		
-		Matcher digits = null;
-		int numMatches = 0;
-		
-		digits = DIGITS_REGEX.matcher(remaining);
-		digits.find();
-		numMatches = Integer.valueOf(digits.group());
-		remaining = remaining.substring(digits.end());
-		for(int n = 0; n < numMatches; n++){
-			positions.add('m');
-		}
-		
-		while(remaining.length() > 0){
-			Matcher mismatchSectionMatcher = MISMATCH_REGEX.matcher(remaining);
-			mismatchSectionMatcher.find();
-			String mismatchSection = mismatchSectionMatcher.group();
-			remaining = remaining.substring(mismatchSectionMatcher.end());
-			if(mismatchSection.charAt(0) == '^'){
-				for(int n = 1; n < mismatchSection.length(); n++){ // skip the ^
-					positions.add(Character.toLowerCase(mismatchSection.charAt(n)));
-				}
+		int length = md_field.length();
+		// each element uses at least one character of the MD field
+		elements = new char[length];
+		lengths = new int[length];
+		int numElements = 0;
+
+		int n = 0;
+		while(true){
+			// matches
+			int digitsStart = n;
+			int numMatches = 0;
+			while(n < length && isDigit(md_field.charAt(n))){
+				numMatches = numMatches * 10 + (md_field.charAt(n) - '0');
+				n++;
 			}
-			else{
-				positions.add(mismatchSection.charAt(0));
-				if(mismatchSection.length() > 1)
-					throw new IllegalArgumentException("More than mismatch in a row");
+			if(n == digitsStart)
+				throw new IllegalArgumentException(md_field);
+			if(numMatches > 0){
+				elements[numElements] = MATCH;
+				lengths[numElements] = numMatches;
+				numElements++;
 			}
-			
-			digits = DIGITS_REGEX.matcher(remaining);
-			digits.find();
-			numMatches = Integer.valueOf(digits.group());
-			remaining = remaining.substring(digits.end());
-			for(int n = 0; n < numMatches; n++){
-				positions.add('m');
+			if(n == length)
+				break;
+
+			// mismatch or deletion
+			char c = md_field.charAt(n++);
+			if(c == '^'){
+				int deletionStart = n;
+				while(n < length && isUpperCase(md_field.charAt(n))){
+					elements[numElements] = Character.toLowerCase(md_field.charAt(n));
+					lengths[numElements] = 1;
+					numElements++;
+					n++;
+				}
+				if(n == deletionStart)
+					throw new IllegalArgumentException(md_field);
+				editDistance += n - deletionStart;
 			}
+			else if(isUpperCase(c)){
+				elements[numElements] = c;
+				lengths[numElements] = 1;
+				numElements++;
+				editDistance++;
+			}
+			else
+				throw new IllegalArgumentException(md_field);
 		}
+		first = 0;
+		last = numElements - 1;
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
 	}
-	
+
+	private static boolean isUpperCase(char c){
+		return c >= 'A' && c <= 'Z';
+	}
+
+	/**
+	 * Remove reference positions from both ends.
+	 * Matches are removed from runs, so this does not depend on the number of positions removed.
+	 * @param numLeftElements number of reference positions to remove from start
+	 * @param numRightElements number of reference positions to remove from end
+	 */
 	public void clip(int numLeftElements, int numRightElements){
 		// remove right elements from end
-		for(int n = 0; n < numRightElements; n++){
-			positions.remove(positions.size() - 1);
+		int remaining = numRightElements;
+		while(remaining > 0){
+			if(first > last)
+				throw new IndexOutOfBoundsException("Clipping beyond end of MD");
+			if(elements[last] == MATCH){
+				int removed = Math.min(remaining, lengths[last]);
+				lengths[last] -= removed;
+				remaining -= removed;
+				if(lengths[last] == 0)
+					last--;
+			}
+			else{
+				editDistance--;
+				remaining--;
+				last--;
+			}
 		}
 		// remove left elements from start
-		for(int n = 0; n < numLeftElements; n++){
-			positions.remove(0);
+		remaining = numLeftElements;
+		while(remaining > 0){
+			if(first > last)
+				throw new IndexOutOfBoundsException("Clipping beyond start of MD");
+			if(elements[first] == MATCH){
+				int removed = Math.min(remaining, lengths[first]);
+				lengths[first] -= removed;
+				remaining -= removed;
+				if(lengths[first] == 0)
+					first++;
+			}
+			else{
+				editDistance--;
+				remaining--;
+				first++;
+			}
 		}
 	}
-	
+
 	public int editDistance(){
-		int editCount = 0;
-		for (char current : positions){
-			if(current != 'm'){
-				editCount++;
-			}
-		}
-		return editCount;
+		return editDistance;
 	}
-	
+
 	public String toString(){
 		StringBuilder builder = new StringBuilder();
 		int matchCount = 0;
 		boolean deleteMarker = false;
-		for(char current : positions){
+		for(int n = first; n <= last; n++){
+			char current = elements[n];
 			switch(current){
-			case 'm':
-				matchCount++;
+			case MATCH:
+				matchCount += lengths[n];
 				deleteMarker = false;
 				break;
 			case 'A':
@@ -124,7 +175,7 @@ public class SAM_MD {
 				builder.append(Character.toUpperCase(current));
 				break;
 			default:
-				throw new IllegalArgumentException("Unexpected MD character " + current);	
+				throw new IllegalArgumentException("Unexpected MD character " + current);
 			}
 		}
 		builder.append(matchCount);
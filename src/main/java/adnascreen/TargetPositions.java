@@ -0,0 +1,347 @@
+package adnascreen;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.tribble.bed.BEDCodec;
+import htsjdk.tribble.bed.BEDFeature;
+
+/**
+ * Target intervals from a BED file, stored as arrays sorted by start for each reference sequence.
+ * Coordinates are 1-based and inclusive, as in htsjdk features.
+ * A cursor finds the intervals overlapping an alignment, advancing through the
+ * arrays when alignments are coordinate sorted.
+ * Positions can be compiled from BED to a binary file that is memory mapped when loaded.
+ *
+ */
+public class TargetPositions {
+	static class Contig {
+		final IntBuffer starts;
+		final IntBuffer ends;
+		// maximum end of intervals [0, n], used to find the first interval that may overlap a position
+		final IntBuffer maximumEnds;
+
+		Contig(int[] starts, int[] ends){
+			int[] maximumEnds = new int[ends.length];
+			int maximum = Integer.MIN_VALUE;
+			for(int n = 0; n < ends.length; n++){
+				maximum = Math.max(maximum, ends[n]);
+				maximumEnds[n] = maximum;
+			}
+			this.starts = IntBuffer.wrap(starts);
+			this.ends = IntBuffer.wrap(ends);
+			this.maximumEnds = IntBuffer.wrap(maximumEnds);
+		}
+
+		Contig(IntBuffer starts, IntBuffer ends, IntBuffer maximumEnds){
+			this.starts = starts;
+			this.ends = ends;
+			this.maximumEnds = maximumEnds;
+		}
+
+		int size(){
+			return starts.limit();
+		}
+
+		int start(int n){
+			return starts.get(n);
+		}
+
+		int end(int n){
+			return ends.get(n);
+		}
+
+		int maximumEnd(int n){
+			return maximumEnds.get(n);
+		}
+
+		/**
+		 * @param position
+		 * @return index of first interval with an end at or after position, or size if none
+		 */
+		int firstPossibleOverlap(int position){
+			int low = 0;
+			int high = size();
+			while(low < high){
+				int middle = (low + high) >>> 1;
+				if(maximumEnd(middle) < position)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+	}
+
+	// binary positions file: magic, number of contigs, then for each contig
+	// name length, name padded to a multiple of 4 bytes, interval count, starts, ends, maximum ends
+	private static final byte[] MAGIC = "ADNAPOS1".getBytes(StandardCharsets.US_ASCII);
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private final Map<String, Contig> contigs;
+
+	TargetPositions(Map<String, Contig> contigs){
+		this.contigs = contigs;
+	}
+
+	public static void main(String[] args) throws ParseException, IOException{
+		CommandLineParser parser = new DefaultParser();
+		Options options = new Options();
+		options.addRequiredOption("i", "input", true, "positions file in BED format");
+		options.addRequiredOption("o", "output", true, "output binary positions file, usable in place of the BED file");
+		CommandLine commandLine	= parser.parse(options, args);
+
+		TargetPositions positions = fromBED(commandLine.getOptionValue('i'));
+		positions.write(commandLine.getOptionValue('o'));
+	}
+
+	/**
+	 * Load positions from either a binary positions file, which is memory mapped, or a BED file
+	 * @param filename
+	 * @return positions
+	 * @throws IOException
+	 */
+	public static TargetPositions load(String filename) throws IOException{
+		if(isBinary(filename))
+			return fromBinary(filename);
+		return fromBED(filename);
+	}
+
+	static boolean isBinary(String filename) throws IOException{
+		byte[] start = new byte[MAGIC.length];
+		try(InputStream in = new FileInputStream(filename)){
+			int bytesRead = 0;
+			while(bytesRead < start.length){
+				int n = in.read(start, bytesRead, start.length - bytesRead);
+				if(n < 0)
+					return false;
+				bytesRead += n;
+			}
+		}
+		return Arrays.equals(MAGIC, start);
+	}
+
+	/**
+	 * Map a binary positions file read-only. Interval arrays are read directly from the mapping,
+	 * so loading does not depend on the number of intervals, and the pages are shared by all processes using the file.
+	 */
+	public static TargetPositions fromBinary(String filename) throws IOException{
+		MappedByteBuffer buffer;
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buffer.order(BYTE_ORDER);
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if(!Arrays.equals(MAGIC, magic))
+			throw new IllegalArgumentException("Not a binary positions file: " + filename);
+		int numContigs = buffer.getInt();
+		Map<String, Contig> contigs = new HashMap<String, Contig>();
+		for(int c = 0; c < numContigs; c++){
+			byte[] name = new byte[buffer.getInt()];
+			buffer.get(name);
+			buffer.position(buffer.position() + padding(name.length));
+			int count = buffer.getInt();
+			IntBuffer starts = intSlice(buffer, count);
+			IntBuffer ends = intSlice(buffer, count);
+			IntBuffer maximumEnds = intSlice(buffer, count);
+			contigs.put(new String(name, StandardCharsets.UTF_8), new Contig(starts, ends, maximumEnds));
+		}
+		return new TargetPositions(contigs);
+	}
+
+	private static IntBuffer intSlice(ByteBuffer buffer, int count){
+		ByteBuffer slice = buffer.slice();
+		slice.order(BYTE_ORDER);
+		slice.limit(count * Integer.BYTES);
+		buffer.position(buffer.position() + count * Integer.BYTES);
+		return slice.asIntBuffer();
+	}
+
+	private static int padding(int length){
+		return (Integer.BYTES - length % Integer.BYTES) % Integer.BYTES;
+	}
+
+	/**
+	 * Write positions in binary format, with contigs sorted by name
+	 * @param filename
+	 * @throws IOException
+	 */
+	public void write(String filename) throws IOException{
+		List<String> names = new ArrayList<String>(contigs.keySet());
+		Collections.sort(names);
+		int size = MAGIC.length + Integer.BYTES;
+		for(String name : names){
+			int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+			size += Integer.BYTES + nameLength + padding(nameLength) + Integer.BYTES + 3 * Integer.BYTES * contigs.get(name).size();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.order(BYTE_ORDER);
+		buffer.put(MAGIC);
+		buffer.putInt(names.size());
+		for(String name : names){
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			buffer.putInt(nameBytes.length);
+			buffer.put(nameBytes);
+			for(int n = 0; n < padding(nameBytes.length); n++){
+				buffer.put((byte) 0);
+			}
+			Contig contig = contigs.get(name);
+			buffer.putInt(contig.size());
+			for(int n = 0; n < contig.size(); n++){
+				buffer.putInt(contig.start(n));
+			}
+			for(int n = 0; n < contig.size(); n++){
+				buffer.putInt(contig.end(n));
+			}
+			for(int n = 0; n < contig.size(); n++){
+				buffer.putInt(contig.maximumEnd(n));
+			}
+		}
+		buffer.flip();
+		try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+		}
+	}
+
+	public static TargetPositions fromBED(String filename) throws IOException{
+		Map<String, long[]> intervalsByContig = new HashMap<String, long[]>();
+		Map<String, Integer> countsByContig = new HashMap<String, Integer>();
+		BEDCodec bedCodec = new BEDCodec();
+		try(InputStream referenceStream = new FileInputStream(filename);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(referenceStream));
+				){
+			String line;
+			while((line = reader.readLine()) != null){
+				BEDFeature feature = bedCodec.decode(line);
+				if(feature == null) // header line
+					continue;
+				String contig = feature.getContig();
+				long[] intervals = intervalsByContig.get(contig);
+				int count = countsByContig.getOrDefault(contig, 0);
+				if(intervals == null){
+					intervals = new long[16];
+				} else if(count == intervals.length){
+					intervals = Arrays.copyOf(intervals, 2 * count);
+				}
+				intervalsByContig.put(contig, intervals);
+				// sort by start, then end
+				intervals[count] = ((long) feature.getStart() << 32) | (feature.getEnd() & 0xffffffffL);
+				countsByContig.put(contig, count + 1);
+			}
+		}
+		Map<String, Contig> contigs = new HashMap<String, Contig>();
+		for(Map.Entry<String, long[]> entry : intervalsByContig.entrySet()){
+			int count = countsByContig.get(entry.getKey());
+			long[] intervals = entry.getValue();
+			Arrays.sort(intervals, 0, count);
+			int[] starts = new int[count];
+			int[] ends = new int[count];
+			for(int n = 0; n < count; n++){
+				starts[n] = (int) (intervals[n] >>> 32);
+				ends[n] = (int) intervals[n];
+			}
+			contigs.put(entry.getKey(), new Contig(starts, ends));
+		}
+		return new TargetPositions(contigs);
+	}
+
+	/**
+	 * @param dictionary
+	 * @return sorted, merged query intervals for reference sequences in the dictionary
+	 */
+	public QueryInterval[] queryIntervals(SAMSequenceDictionary dictionary){
+		List<QueryInterval> intervals = new ArrayList<QueryInterval>();
+		for(Map.Entry<String, Contig> entry : contigs.entrySet()){
+			int referenceIndex = dictionary.getSequenceIndex(entry.getKey());
+			if(referenceIndex >= 0){
+				Contig contig = entry.getValue();
+				for(int n = 0; n < contig.size(); n++){
+					intervals.add(new QueryInterval(referenceIndex, contig.start(n), contig.end(n)));
+				}
+			}
+		}
+		return QueryInterval.optimizeIntervals(intervals.toArray(new QueryInterval[intervals.size()]));
+	}
+
+	Contig getContig(String referenceName){
+		return contigs.get(referenceName);
+	}
+
+	/**
+	 * A cursor is used by one thread at a time
+	 * @return cursor for finding overlapping intervals
+	 */
+	public Cursor cursor(){
+		return new Cursor();
+	}
+
+	/**
+	 * Finds intervals overlapping successive alignments.
+	 * For alignments in coordinate order, the cursor only moves forward.
+	 * Alignments in other orders are handled with a binary search.
+	 */
+	public class Cursor {
+		private String referenceName = null;
+		private Contig contig = null;
+		private int index = 0;
+		private int lastStart = 0;
+
+		/**
+		 * Position the cursor at the first interval that may overlap an alignment starting at start.
+		 * Overlapping intervals are then those from index() with start at or before the alignment end
+		 * and end at or after start.
+		 * @param referenceName
+		 * @param start 1-based alignment start
+		 * @return contig intervals, or null if there are none for this reference
+		 */
+		Contig seek(String referenceName, int start){
+			if(!referenceName.equals(this.referenceName)){
+				this.referenceName = referenceName;
+				contig = contigs.get(referenceName);
+				if(contig != null)
+					index = contig.firstPossibleOverlap(start);
+			} else if(contig != null){
+				if(start < lastStart){
+					index = contig.firstPossibleOverlap(start);
+				} else {
+					while(index < contig.size() && contig.maximumEnd(index) < start)
+						index++;
+				}
+			}
+			lastStart = start;
+			return contig;
+		}
+
+		int index(){
+			return index;
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package adnascreen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.MissingOptionException;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Apply the record transforms of several programs in one pass, reading and writing the alignments once.
+ * Steps are applied in the order given, and the output matches running each standalone program
+ * on the output of the previous one: barcodemover, duplicatestagrewrite, readgrouprewrite,
+ * softclip, hardclip, damagerestrict, and filtersam.
+ * Clipping options are used by the first step that clips, so a filtersam step after softclip does not clip again.
+ *
+ */
+public class TransformChain {
+	/**
+	 * Transformed records of one batch, or for BAM output, the batch compressed into BGZF blocks
+	 */
+	private static class TransformedBatch {
+		final List<SAMRecord> records;
+		final byte[] compressed;
+
+		TransformedBatch(List<SAMRecord> records, byte[] compressed) {
+			this.records = records;
+			this.compressed = compressed;
+		}
+	}
+
+	public static void main(String [] args) throws ParseException, IOException, InterruptedException, ExecutionException {
+		CommandLineParser parser = new DefaultParser();
+		Options options = new Options();
+		options.addRequiredOption("i", "input", true, "Input SAM/BAM filename");
+		options.addRequiredOption("o", "output", true, "Output SAM/BAM filename");
+		options.addRequiredOption(null, "steps", true, "Comma separated steps in order, for example: barcodemover,softclip,damagerestrict,filtersam");
+		options.addOption("b", "BAM", false, "Use bam files for output");
+		options.addOption(null, "threads", true, "Number of threads for transforming, and for BAM output, compression; output order is unchanged");
+		options.addOption(null, "compression", true, "HTSJDK compression parameter for BAM: 0=none, 9=max, default 5");
+		// DuplicatesTagRewrite
+		options.addOption(null, "p5-barcode-tag", true, "duplicatestagrewrite: Tag with p5 barcode to copy into deduplicating tag");
+		options.addOption(null, "p7-barcode-tag", true, "duplicatestagrewrite: Tag with p7 barcode to copy into deduplicating tag");
+		// ReadGroupRewrite
+		options.addOption(null, "sample", true, "readgrouprewrite: sample ID");
+		options.addOption(null, "library", true, "readgrouprewrite: Library");
+		options.addOption(null, "sequencing-center", true, "readgrouprewrite: sequencing center producing read");
+		options.addOption(null, "sequencing-platform", true, "readgrouprewrite: sequencing platform producing read");
+		// DamageRestrict
+		options.addOption(null, "damage", true, "damagerestrict: damage threshold > for retaining read");
+		options.addOption(null, "damage-tag", true, "damagerestrict: SAM tag to use, default: 'ds'");
+		// FilterSAM
+		options.addOption(null, "positions", true, "filtersam: positions file in BED format, or compiled with compilepositions");
+		options.addOption(null, "minimum_mapping_quality", true, "filtersam: minimum mapping quality");
+		options.addOption(null, "minimum_base_quality", true, "filtersam: minimum base quality");
+		Clipping.addSoftClipCommandLineOptions(options);
+		CommandLine commandLine	= parser.parse(options, args);
+
+		String inputFilename = commandLine.getOptionValue("input");
+		String outputFilename = commandLine.getOptionValue("output");
+		String[] steps = commandLine.getOptionValue("steps").split(",");
+		boolean useBAM = commandLine.hasOption("BAM") || Driver.isBAMFilename(outputFilename);
+		int numThreads = Integer.valueOf(commandLine.getOptionValue("threads", "1"));
+		int compression = Integer.valueOf(commandLine.getOptionValue("compression", "5"));
+
+		SamReaderFactory samReaderFactory = SamReaderFactory.makeDefault().setUseAsyncIo(numThreads > 1);
+		SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(inputFilename)));
+		try(
+				SamReader reader = samReaderFactory.open(bufferedSAMFile);
+				){
+			SAMFileHeader header = reader.getFileHeader();
+			List<RecordTransform> chain = makeChain(steps, commandLine, header, args);
+			// clipped alignments may move past following alignments
+			boolean sortOutput = header.getSortOrder() == SAMFileHeader.SortOrder.coordinate
+					&& chain.stream().anyMatch(RecordTransform::movesAlignments);
+			if(numThreads > 1)
+				transformInParallel(reader, header, chain, outputFilename, useBAM, sortOutput, compression, numThreads);
+			else
+				transform(reader, header, chain, outputFilename, useBAM, sortOutput, compression);
+		}
+	}
+
+	/**
+	 * Build the transforms for the steps in order. Steps that change the header, such as readgrouprewrite,
+	 * change it here, and later steps see the changed header.
+	 * @param steps program names, as in Driver
+	 * @param commandLine step options
+	 * @param header input header, which becomes the output header
+	 * @param args command line for the program record of readgrouprewrite
+	 * @return transforms in order
+	 * @throws IOException
+	 * @throws MissingOptionException if a step is missing an option that its standalone program requires
+	 */
+	public static List<RecordTransform> makeChain(String[] steps, CommandLine commandLine, SAMFileHeader header, String[] args) throws IOException, MissingOptionException {
+		List<RecordTransform> chain = new ArrayList<RecordTransform>();
+		// used by the first step that clips
+		Clipping clipping = new Clipping(commandLine);
+		for(String step : steps) {
+			switch(step.trim().toLowerCase()) {
+			case "barcodemover":
+				chain.add(new MoveBarcodes());
+				break;
+			case "duplicatestagrewrite":
+				chain.add(new RewriteDuplicatesTag(commandLine.getOptionValue("p5-barcode-tag"), commandLine.getOptionValue("p7-barcode-tag")));
+				break;
+			case "readgrouprewrite":
+				// records are unchanged
+				ReadGroupRewrite.rewriteHeader(header, requiredOptionValue(commandLine, "sample", step), commandLine.getOptionValue("library"),
+						commandLine.getOptionValue("sequencing-center"), commandLine.getOptionValue("sequencing-platform"), args);
+				break;
+			case "softclip":
+			case "hardclip":
+				if(clipping == null)
+					throw new IllegalArgumentException(step + " after an earlier step that clips");
+				clipping.setHeader(header);
+				chain.add(new Clip(clipping, step.trim().equalsIgnoreCase("hardclip")));
+				clipping = null;
+				break;
+			case "damagerestrict":
+				chain.add(new DamageThreshold(commandLine.getOptionValue("damage-tag", "ds"), Float.valueOf(requiredOptionValue(commandLine, "damage", step))));
+				break;
+			case "filtersam":
+				if(clipping != null)
+					clipping.setHeader(header);
+				int minimumMappingQuality = Integer.valueOf(requiredOptionValue(commandLine, "minimum_mapping_quality", step));
+				int minimumBaseQuality = Integer.valueOf(requiredOptionValue(commandLine, "minimum_base_quality", step));
+				chain.add(new TargetFilter(new FilterSAM(requiredOptionValue(commandLine, "positions", step)), clipping, minimumMappingQuality, minimumBaseQuality));
+				clipping = null;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown step: " + step);
+			}
+		}
+		return chain;
+	}
+
+	private static String requiredOptionValue(CommandLine commandLine, String option, String step) throws MissingOptionException {
+		String value = commandLine.getOptionValue(option);
+		if(value == null)
+			throw new MissingOptionException("Step " + step.trim() + " requires option --" + option);
+		return value;
+	}
+
+	/**
+	 * Each transform handles record errors as its standalone program does: 
+	 * errors that the program reports and skips drop the record, and other errors propagate. 
+	 * @param chain
+	 * @param record
+	 * @return the record after all transforms, or null if a transform dropped it
+	 */
+	public static SAMRecord applyChain(List<RecordTransform> chain, SAMRecord record) {
+		for(RecordTransform transform : chain) {
+			record = transform.apply(record);
+			if(record == null)
+				break;
+		}
+		return record;
+	}
+
+	public static void transform(SamReader reader, SAMFileHeader header, List<RecordTransform> chain, String outputFilename, boolean useBAM, boolean sortOutput, int compression) throws IOException {
+		SAMFileWriter output = makeWriter(header, outputFilename, useBAM, sortOutput, compression);
+		try {
+			SAMRecordIterator i = reader.iterator();
+			while(i.hasNext()){
+				SAMRecord record;
+				try{
+					record = i.next();
+				}
+				catch(Exception e){
+					System.err.println(e.toString());
+					continue;
+				}
+				SAMRecord transformed = applyChain(chain, record);
+				if(transformed != null)
+					output.addAlignment(transformed);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Transform batches of records on a thread pool, writing batches in input order.
+	 * BAM input is read ahead on its own thread, and records are decoded on the pool as transforms read them.
+	 * For BAM output that does not need sorting, each batch is also encoded and compressed on the pool
+	 * into independent BGZF blocks, and the output thread only concatenates blocks.
+	 * Other output is written by the output thread with the htsjdk writer.
+	 * If the run fails, the incomplete output is deleted.
+	 */
+	public static void transformInParallel(SamReader reader, SAMFileHeader header, List<RecordTransform> chain, String outputFilename, boolean useBAM, boolean sortOutput, int compression, int numThreads) throws IOException, InterruptedException, ExecutionException {
+		boolean compressBatches = useBAM && !sortOutput;
+		// each worker thread has its own copies of transforms with state
+		ThreadLocal<List<RecordTransform>> threadChain = ThreadLocal.withInitial(() -> {
+			List<RecordTransform> copy = new ArrayList<RecordTransform>(chain.size());
+			for(RecordTransform transform : chain) {
+				copy.add(transform.forThread());
+			}
+			return copy;
+		});
+
+		OrderedBatches.BatchProcessor<TransformedBatch> transformBatch = (batch, batchStart) -> transformBatch(batch, header, threadChain.get(), compressBatches, compression);
+		// the calling thread serves as the output thread
+		if(compressBatches) {
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFilename));
+			try {
+				BAMBody.writeHeaderBlocks(output, header, compression);
+				OrderedBatches.run(reader.iterator(), numThreads, transformBatch, transformed -> output.write(transformed.compressed));
+				// only after all input was read
+				output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			} catch(Exception e) {
+				OrderedBatches.discardOutput(output, outputFilename, e);
+				throw e;
+			}
+			output.close();
+		} else {
+			SAMFileWriter output = makeWriter(header, outputFilename, useBAM, sortOutput, compression);
+			try {
+				OrderedBatches.run(reader.iterator(), numThreads, transformBatch, transformed -> {
+					for(SAMRecord record : transformed.records) {
+						output.addAlignment(record);
+					}
+				});
+			} catch(Exception e) {
+				OrderedBatches.discardOutput(output, outputFilename, e);
+				throw e;
+			}
+			output.close();
+		}
+	}
+
+	private static TransformedBatch transformBatch(List<SAMRecord> batch, SAMFileHeader header, List<RecordTransform> chain, boolean compressBatch, int compression) throws IOException {
+		List<SAMRecord> kept = new ArrayList<SAMRecord>(batch.size());
+		for(SAMRecord record : batch) {
+			SAMRecord transformed = applyChain(chain, record);
+			if(transformed != null)
+				kept.add(transformed);
+		}
+		if(compressBatch)
+			return new TransformedBatch(null, BAMBody.compress(kept, header, compression));
+		return new TransformedBatch(kept, null);
+	}
+
+	/**
+	 * @param sortOutput true to have the writer sort records into the header's sort order
+	 */
+	private static SAMFileWriter makeWriter(SAMFileHeader header, String outputFilename, boolean useBAM, boolean sortOutput, int compression) throws IOException {
+		SAMFileWriterFactory outputFileFactory = new SAMFileWriterFactory();
+		outputFileFactory.setCompressionLevel(compression);
+		BufferedOutputStream outputFile = new BufferedOutputStream(new FileOutputStream(outputFilename));
+		if(useBAM)
+			return outputFileFactory.makeBAMWriter(header, !sortOutput, outputFile);
+		return outputFileFactory.makeSAMWriter(header, !sortOutput, outputFile);
+	}
+
+	/**
+	 * BarcodeMover: barcodes at the end of the read name move to the duplicates tag
+	 */
+	public static class MoveBarcodes implements RecordTransform {
+		@Override
+		public SAMRecord apply(SAMRecord record) {
+			try{
+				BarcodeMover.moveBarcodeToTag(record, DemultiplexSAM.duplicatesSAMTag);
+				return record;
+			} catch (SAMFormatException e){
+				System.err.println(e);
+				// ignore this record and continue to the next
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * DuplicatesTagRewrite: duplicates tag from barcode tags and read length
+	 */
+	public static class RewriteDuplicatesTag implements RecordTransform {
+		private final String p5BarcodeTag;
+		private final String p7BarcodeTag;
+
+		public RewriteDuplicatesTag(String p5BarcodeTag, String p7BarcodeTag) {
+			this.p5BarcodeTag = p5BarcodeTag;
+			this.p7BarcodeTag = p7BarcodeTag;
+		}
+
+		@Override
+		public SAMRecord apply(SAMRecord record) {
+			DuplicatesTagRewrite.rewriteDuplicatesTag(record, p5BarcodeTag, p7BarcodeTag);
+			return record;
+		}
+	}
+
+	/**
+	 * Soft or hard clipping by library, dropping reads that are entirely clipped
+	 */
+	public static class Clip implements RecordTransform {
+		private final Clipping clipping;
+		private final boolean hardClip;
+
+		public Clip(Clipping clipping, boolean hardClip) {
+			this.clipping = clipping;
+			this.hardClip = hardClip;
+		}
+
+		@Override
+		public SAMRecord apply(SAMRecord record) {
+			// no validation diagnostics
+			try{
+				return clipping.clipRecord(record, hardClip, 0, 0) ? record : null;
+			}
+			catch(Exception e){
+				System.err.println(e.toString());
+				return null;
+			}
+		}
+
+		@Override
+		public boolean movesAlignments() {
+			return true;
+		}
+	}
+
+	/**
+	 * DamageRestrict: keep alignments above a damage score threshold
+	 */
+	public static class DamageThreshold implements RecordTransform {
+		private final String damageTag;
+		private final float damageThreshold;
+
+		public DamageThreshold(String damageTag, float damageThreshold) {
+			this.damageTag = damageTag;
+			this.damageThreshold = damageThreshold;
+		}
+
+		@Override
+		public SAMRecord apply(SAMRecord record) {
+			try{
+				return DamageRestrict.passesDamageThreshold(record, damageTag, damageThreshold) ? record : null;
+			}
+			catch(Exception e){
+				System.err.println(e.toString());
+				System.err.println(record.toString());
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * FilterSAM: keep alignments with sufficient quality at target positions, after optional soft clipping
+	 */
+	public static class TargetFilter implements RecordTransform {
+		private final FilterSAM filter;
+		private final Clipping softClipLengths;
+		private final int minimumMappingQuality;
+		private final int minimumBaseQuality;
+
+		/**
+		 * @param softClipLengths null for no clipping
+		 */
+		public TargetFilter(FilterSAM filter, Clipping softClipLengths, int minimumMappingQuality, int minimumBaseQuality) {
+			this.filter = filter;
+			this.softClipLengths = softClipLengths;
+			this.minimumMappingQuality = minimumMappingQuality;
+			this.minimumBaseQuality = minimumBaseQuality;
+		}
+
+		@Override
+		public SAMRecord apply(SAMRecord record) {
+			try{
+				return filter.clipAndFilter(record, softClipLengths, minimumMappingQuality, minimumBaseQuality) ? record : null;
+			}
+			catch(Exception e){
+				System.err.println(e.toString());
+				System.err.println(record.toString());
+				return null;
+			}
+		}
+
+		@Override
+		public RecordTransform forThread() {
+			// the position cursor is not shared between threads
+			return new TargetFilter(new FilterSAM(filter.positions), softClipLengths, minimumMappingQuality, minimumBaseQuality);
+		}
+
+		@Override
+		public boolean movesAlignments() {
+			return softClipLengths != null;
+		}
+	}
+}
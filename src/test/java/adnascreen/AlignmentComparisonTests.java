@@ -7,11 +7,20 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.cli.ParseException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
@@ -26,6 +35,9 @@ public class AlignmentComparisonTests {
 			 "shortReadForClipping.sam", "test.sam", "target-test.sam"};
 	String tags[] = {"MD", "XD", "RG", "NM"};
 	
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+	
 	public SAMRecord getRecord(String filename, int zeroBasedIndex) throws IOException {
 		ClassLoader classLoader = getClass().getClassLoader();
 		String filepath = classLoader.getResource(filename).getPath();
@@ -148,7 +160,7 @@ public class AlignmentComparisonTests {
 		}
 	}
 	
-	private void differentSAMCommandLine(String filename1, String filename2) throws IOException, ParseException {
+	private void differentSAMCommandLine(String filename1, String filename2) throws IOException, ParseException, InterruptedException, ExecutionException {
 		ClassLoader classLoader = getClass().getClassLoader();
 		String samFilename1 = classLoader.getResource(filename1).getPath();
 		String samFilename2 = classLoader.getResource(filename2).getPath();
@@ -165,7 +177,7 @@ public class AlignmentComparisonTests {
 	}
 	
 	@Test
-	public void differentSAMFilesCommandLine() throws IOException, ParseException {
+	public void differentSAMFilesCommandLine() throws IOException, ParseException, InterruptedException, ExecutionException {
 		for (int x = 0; x < samFilenames.length; x++) {
 			for (int y = x+1; y < samFilenames.length; y++) {
 				differentSAMCommandLine(samFilenames[x], samFilenames[y]);
@@ -202,7 +214,7 @@ public class AlignmentComparisonTests {
 	}
 	
 	@Test
-	public void testMergeCommandLine() throws IOException, ParseException {
+	public void testMergeCommandLine() throws IOException, ParseException, InterruptedException, ExecutionException {
 		ClassLoader classLoader = getClass().getClassLoader();
 		String samFilename1 = classLoader.getResource("alignment_comparison/multi_lib123.sam").getPath();
 		String samFilename2 = classLoader.getResource("alignment_comparison/multi_lib45.sam").getPath();
@@ -268,9 +280,152 @@ public class AlignmentComparisonTests {
 	}
 	
 	@Test
-	public void testDifferentReferenceDictionaryCommandLine() throws IOException, ParseException {
+	public void testDifferentReferenceDictionaryCommandLine() throws IOException, ParseException, InterruptedException, ExecutionException {
 		String samFilename1 = "alignment_comparison/multi_lib45.sam";
 		String samFilename2 = "alignment_comparison/multi_lib45_extraSeqDict.sam";
 		differentSAMCommandLine(samFilename1, samFilename2);
 	}
+	
+	@Test
+	public void testUnordered() throws IOException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		for (String samFilename : samFilenames) {
+			String filename = classLoader.getResource(samFilename).getPath();
+			assertTrue(AlignmentComparison.compareAlignmentFilesUnordered(filename, new String[] {filename}, tags, null, 0));
+		}
+		for (int x = 0; x < samFilenames.length; x++) {
+			for (int y = x+1; y < samFilenames.length; y++) {
+				String filename1 = classLoader.getResource(samFilenames[x]).getPath();
+				String filename2 = classLoader.getResource(samFilenames[y]).getPath();
+				assertFalse(AlignmentComparison.compareAlignmentFilesUnordered(filename1, new String[] {filename2}, tags, null, AlignmentComparison.DEFAULT_WINDOW));
+				assertFalse(AlignmentComparison.compareAlignmentFilesUnordered(filename2, new String[] {filename1}, tags, null, AlignmentComparison.DEFAULT_WINDOW));
+			}
+		}
+		String samFilename1 = classLoader.getResource("alignment_comparison/multi_lib123.sam").getPath();
+		String samFilename2 = classLoader.getResource("alignment_comparison/multi_lib45.sam").getPath();
+		String merged = classLoader.getResource("multi_lib.sam").getPath();
+		assertTrue(AlignmentComparison.compareAlignmentFilesUnordered(merged, new String[] {samFilename1, samFilename2}, tags, null, AlignmentComparison.DEFAULT_WINDOW));
+		assertFalse(AlignmentComparison.compareAlignmentFilesUnordered(merged, new String[] {samFilename1}, tags, null, AlignmentComparison.DEFAULT_WINDOW));
+	}
+	
+	@Test
+	public void testUnorderedShuffled() throws IOException, ParseException, InterruptedException, ExecutionException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		List<String> header = new ArrayList<String>();
+		List<String> records = new ArrayList<String>();
+		for (String line : Files.readAllLines(new File(filename).toPath())) {
+			(line.startsWith("@") ? header : records).add(line);
+		}
+		Collections.shuffle(records, new Random(17));
+		header.addAll(records);
+		File shuffled = testFolder.newFile("shuffled.sam");
+		Files.write(shuffled.toPath(), header);
+		
+		String[] inputs = {filename};
+		assertFalse(AlignmentComparison.compareAlignmentFiles(shuffled.getAbsolutePath(), inputs, tags, null));
+		assertTrue(AlignmentComparison.compareAlignmentFilesUnordered(shuffled.getAbsolutePath(), inputs, tags, null, records.size()));
+		// window is too small for a full shuffle
+		assertFalse(AlignmentComparison.compareAlignmentFilesUnordered(shuffled.getAbsolutePath(), inputs, tags, null, 10));
+		
+		String[] commandArray = {"-u", "-c", shuffled.getAbsolutePath(), "-i", filename};
+		assertEquals(AlignmentComparison.MATCH, AlignmentComparison.main(commandArray));
+	}
+	
+	@Test
+	public void testIndexed() throws IOException, ParseException, InterruptedException, ExecutionException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		File directory1 = new File(testFolder.getRoot(), "1");
+		File directory2 = new File(testFolder.getRoot(), "2");
+		directory1.mkdir();
+		directory2.mkdir();
+		String bam1 = SAMStatsTest.sortedIndexedBAM(classLoader.getResource("alignment_comparison/multi_lib123.sam").getPath(), directory1).getPath();
+		String bam2 = SAMStatsTest.sortedIndexedBAM(classLoader.getResource("alignment_comparison/multi_lib45.sam").getPath(), directory2).getPath();
+		String merged = SAMStatsTest.sortedIndexedBAM(classLoader.getResource("multi_lib.sam").getPath(), testFolder.getRoot()).getPath();
+		
+		assertTrue(AlignmentComparison.compareAlignmentFilesByReference(merged, new String[] {bam1, bam2}, tags, null, 4));
+		assertFalse(AlignmentComparison.compareAlignmentFilesByReference(merged, new String[] {bam1}, tags, null, 4));
+		assertFalse(AlignmentComparison.compareAlignmentFilesByReference(bam1, new String[] {bam1, bam2}, tags, null, 1));
+		
+		String[] commandArray = {"--indexed", "--threads", "2", "-c", merged, "-i", bam1, bam2};
+		assertEquals(AlignmentComparison.MATCH, AlignmentComparison.main(commandArray));
+	}
+	
+	@Test
+	public void testDigest() throws IOException, ParseException, InterruptedException, ExecutionException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		for (String samFilename : samFilenames) {
+			String filename = classLoader.getResource(samFilename).getPath();
+			assertTrue(AlignmentComparison.compareAlignmentFilesDigest(filename, new String[] {filename}, tags, null));
+		}
+		for (int x = 0; x < samFilenames.length; x++) {
+			for (int y = x+1; y < samFilenames.length; y++) {
+				String filename1 = classLoader.getResource(samFilenames[x]).getPath();
+				String filename2 = classLoader.getResource(samFilenames[y]).getPath();
+				assertFalse(AlignmentComparison.compareAlignmentFilesDigest(filename1, new String[] {filename2}, tags, null));
+			}
+		}
+		String samFilename1 = classLoader.getResource("alignment_comparison/multi_lib123.sam").getPath();
+		String samFilename2 = classLoader.getResource("alignment_comparison/multi_lib45.sam").getPath();
+		String merged = classLoader.getResource("multi_lib.sam").getPath();
+		assertTrue(AlignmentComparison.compareAlignmentFilesDigest(merged, new String[] {samFilename2, samFilename1}, tags, null));
+		assertFalse(AlignmentComparison.compareAlignmentFilesDigest(merged, new String[] {samFilename1}, tags, null));
+		assertFalse(AlignmentComparison.compareAlignmentFilesDigest(merged, new String[] {samFilename1, samFilename1, samFilename2}, tags, null));
+		
+		String[] commandArray = {"--digest", "-c", merged, "-i", samFilename1, samFilename2};
+		assertEquals(AlignmentComparison.MATCH, AlignmentComparison.main(commandArray));
+	}
+	
+	@Test
+	public void testDigestRecord() throws IOException {
+		SAMRecord x = getRecord("multi_lib.sam", 0);
+		AlignmentDigest expected = new AlignmentDigest(tags);
+		expected.add(x);
+		// duplicate flag is ignored, as in compareFullAlignments
+		SAMRecord y = x.deepCopy();
+		y.setDuplicateReadFlag(!x.getDuplicateReadFlag());
+		AlignmentDigest digest = new AlignmentDigest(tags);
+		digest.add(y);
+		assertTrue(expected.matches(digest));
+		
+		y = x.deepCopy();
+		y.setMappingQuality(x.getMappingQuality() + 1);
+		digest = new AlignmentDigest(tags);
+		digest.add(y);
+		assertFalse(expected.matches(digest));
+		
+		y = x.deepCopy();
+		y.setAttribute("XD", "ATTGGCA_AAGCATC_40");
+		digest = new AlignmentDigest(tags);
+		digest.add(y);
+		assertFalse(expected.matches(digest));
+	}
+	
+	@Test
+	public void testDigestQualities() throws IOException {
+		SAMRecord x = getRecord("multi_lib.sam", 0);
+		x.setReadBases(new byte[] {'A'});
+		x.setBaseQualities(new byte[] {30});
+		x.setCigarString("1M");
+		SAMRecord y = x.deepCopy();
+		y.setBaseQualities(new byte[] {20});
+		// one-base qualities are compared, as in compareFullAlignments
+		assertFalse(AlignmentComparison.compareFullAlignments(x, y, tags));
+		AlignmentDigest expected = new AlignmentDigest(tags);
+		expected.add(x);
+		AlignmentDigest digest = new AlignmentDigest(tags);
+		digest.add(y);
+		assertFalse(expected.matches(digest));
+		
+		// missing qualities match in compareFullAlignments, but not in digests
+		x = getRecord("multi_lib.sam", 0);
+		y = x.deepCopy();
+		y.setBaseQualities(SAMRecord.NULL_QUALS);
+		assertTrue(AlignmentComparison.compareFullAlignments(x, y, tags));
+		expected = new AlignmentDigest(tags);
+		expected.add(x);
+		digest = new AlignmentDigest(tags);
+		digest.add(y);
+		assertFalse(expected.matches(digest));
+	}
 }
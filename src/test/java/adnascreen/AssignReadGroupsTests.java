@@ -0,0 +1,124 @@
+package adnascreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class AssignReadGroupsTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static List<String> headerAndRecords(File f) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		try(SamReader reader = SamReaderFactory.makeDefault().open(f)){
+			lines.add(reader.getFileHeader().getSAMString());
+			for(SAMRecord record : reader) {
+				lines.add(record.getSAMString());
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void singlePassMatchesTwoPass() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		try {
+			for(String extension : new String[] {".bam", ".sam"}) {
+				File folder = testFolder.newFolder(extension.substring(1));
+				File twoPass = new File(folder, "two_pass" + extension);
+				File singlePass = new File(folder, "single_pass" + extension);
+				String[] args = {"-i", filename, "-o", twoPass.getAbsolutePath(), "-s", "S1234", "-x", "label", "-d", "20170725", "-l", "S1234.E1.L1"};
+				AssignReadGroups.main(args);
+				args[3] = singlePass.getAbsolutePath();
+				String[] singlePassArgs = new String[args.length + 1];
+				System.arraycopy(args, 0, singlePassArgs, 0, args.length);
+				singlePassArgs[args.length] = "--single-pass";
+				AssignReadGroups.main(singlePassArgs);
+
+				List<String> expected = headerAndRecords(twoPass);
+				assertTrue(expected.size() > 1);
+				assertTrue(expected.get(0).contains("label_20170725_HTW2FBGXY_1"));
+				assertTrue(expected.get(1).startsWith("12301:3823:8886\t"));
+				assertEquals(expected, headerAndRecords(singlePass));
+				if(extension.equals(".sam"))
+					assertArrayEquals(Files.readAllBytes(twoPass.toPath()), Files.readAllBytes(singlePass.toPath()));
+				// temporary body is removed
+				String[] files = folder.list();
+				Arrays.sort(files);
+				assertArrayEquals(new String[] {singlePass.getName(), twoPass.getName()}, files);
+			}
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void bamInputMatchesSAMInput() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		try {
+			File bam = SAMStatsTest.sortedIndexedBAM(filename, testFolder.getRoot());
+			File fromSAM = new File(testFolder.getRoot(), "from_sam.bam");
+			File fromBAM = new File(testFolder.getRoot(), "from_bam.bam");
+			AssignReadGroups.main(new String[] {"-i", filename, "-o", fromSAM.getAbsolutePath(), "-s", "S1234", "-d", "20170725"});
+			// names are scanned from the raw BAM on the first pass
+			AssignReadGroups.main(new String[] {"-i", bam.getAbsolutePath(), "-o", fromBAM.getAbsolutePath(), "-s", "S1234", "-d", "20170725"});
+			assertEquals(headerAndRecords(fromSAM), headerAndRecords(fromBAM));
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+	
+	@Test
+	public void readGroupsByLane() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		try {
+			File output = new File(testFolder.getRoot(), "output.sam");
+			AssignReadGroups.main(new String[] {"-i", filename, "-o", output.getAbsolutePath(), "-s", "S1234", "-x", "label", "-d", "20170725"});
+			try(SamReader reader = SamReaderFactory.makeDefault().open(output)){
+				assertEquals(4, reader.getFileHeader().getReadGroups().size());
+				for(SAMRecord record : reader) {
+					String readGroupID = record.getReadGroup().getId();
+					assertEquals(readGroupID, AssignReadGroups.assembleReadGroupID("label", new SimpleDateFormat("yyyyMMdd").parse("20170725"), "HTW2FBGXY", Integer.valueOf(record.getReadGroup().getPlatformUnit().split("\\.")[1])));
+					assertEquals(3, record.getReadName().split(":").length);
+				}
+			}
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+	
+	@Test
+	public void shortenedReadName() {
+		assertEquals("12301:3823:8886", AssignReadGroups.shortenedReadName("NS500217:348:HTW2FBGXY:1:12301:3823:8886"));
+		// numbers are canonical, as with Integer.valueOf
+		assertEquals("1:2:3", AssignReadGroups.shortenedReadName("NS500217:348:HTW2FBGXY:1:001:+2:03:extra"));
+		for(String invalid : new String[] {"NS500217:348:HTW2FBGXY:1:12301:3823", "NS500217:348:HTW2FBGXY:1:12301:3823:88x6", "NS500217:348:HTW2FBGXY:1::3823:8886"}) {
+			try {
+				AssignReadGroups.shortenedReadName(invalid);
+				fail(invalid);
+			} catch(RuntimeException e) {
+				// expected
+			}
+		}
+	}
+}
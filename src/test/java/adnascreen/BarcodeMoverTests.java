@@ -3,11 +3,17 @@ package adnascreen;
 import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
@@ -15,6 +21,8 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 
 public class BarcodeMoverTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
 	
 	@Test
 	public void file_barcodes(){
@@ -79,4 +87,27 @@ public class BarcodeMoverTests {
 			fail(e.toString());
 		}
 	}
+	
+	@Test
+	public void rawMatchesDecoded() {
+		try {
+			ClassLoader classLoader = getClass().getClassLoader();
+			String samFilename = classLoader.getResource("heng_shotgun.sam").getPath();
+			File bam = new File(testFolder.getRoot(), "heng_shotgun.bam");
+			try(SamReader reader = SamReaderFactory.makeDefault().open(new File(samFilename));
+					SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, bam)){
+				for(SAMRecord record : reader) {
+					writer.addAlignment(record);
+				}
+			}
+			File decoded = new File(testFolder.getRoot(), "decoded.bam");
+			File raw = new File(testFolder.getRoot(), "raw.bam");
+			BarcodeMover.main(new String[] {"-i", samFilename, "-o", decoded.getAbsolutePath()});
+			// BAM input is edited without decoding records
+			BarcodeMover.main(new String[] {"-i", bam.getAbsolutePath(), "-o", raw.getAbsolutePath()});
+			assertArrayEquals(Files.readAllBytes(decoded.toPath()), Files.readAllBytes(raw.toPath()));
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
 }
@@ -6,9 +6,14 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -218,6 +223,36 @@ public class ClipSoftTest {
 		assertEquals(expected, test.toString());
 	}
 	
+	@Test
+	public void testMD_clipEditDistance(){
+		String md = "0C53^CG55";
+		SAM_MD test = new SAM_MD(md);
+		test.clip(1, 0);
+		assertEquals("53^CG55", test.toString());
+		assertEquals(2, test.editDistance());
+		test.clip(54, 0);
+		assertEquals("0^G55", test.toString());
+		assertEquals(1, test.editDistance());
+		test.clip(1, 50);
+		assertEquals("5", test.toString());
+		assertEquals(0, test.editDistance());
+	}
+	
+	@Test
+	public void testMD_adjacentEdits(){
+		String md = "4^A0C3";
+		SAM_MD test = new SAM_MD(md);
+		assertEquals(md, test.toString());
+		assertEquals(2, test.editDistance());
+		test.clip(4, 3);
+		assertEquals("0^A0C0", test.toString());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMD_invalid(){
+		new SAM_MD("12A");
+	}
+	
 	@Test
 	public void cigarInsertLength(){
 		Cigar c = TextCigarCodec.decode("52M2I5M");
@@ -491,11 +526,53 @@ public class ClipSoftTest {
 			
 			// empty reads are dropped; there should be fewer output reads than input reads
 			assertTrue(outputCount < inputCount);
-		} catch (IOException | ParseException e) {
+		} catch (IOException | ParseException | InterruptedException | ExecutionException e) {
 			fail();
 		}
 	}
 	
+	@Test
+	public void threadedMatchesSingleThreaded() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		try {
+			File single = testFolder.newFile("single.sam");
+			File threaded = testFolder.newFile("threaded.sam");
+			Clipping.main(new String[] {"-n", "2", "-i", filename, "-o", single.getAbsolutePath()});
+			Clipping.main(new String[] {"-n", "2", "-i", filename, "-o", threaded.getAbsolutePath(), "--threads", "3", "--validationInterval", "0"});
+			assertTrue(single.length() > 0);
+			assertArrayEquals(Files.readAllBytes(single.toPath()), Files.readAllBytes(threaded.toPath()));
+		} catch (IOException | ParseException | InterruptedException | ExecutionException e) {
+			fail(e.toString());
+		}
+	}
+	
+	@Test
+	public void readGroupClippingLengths() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("multi_lib.sam").getPath();
+		try {
+			String [] args = {"-n", "2", "-x", "10", "-s", "Lib2", "-s", "Lib3", "-y", "-0", "-t", "Lib4"};
+			Options options = new Options();
+			Clipping.addSoftClipCommandLineOptions(options);
+			CommandLine commandLine = new DefaultParser().parse(options, args);
+			Clipping byLibrary = new Clipping(commandLine);
+			Clipping byReadGroup = new Clipping(commandLine);
+			
+			SamReader reader = SamReaderFactory.makeDefault().open(new File(filename));
+			byReadGroup.setHeader(reader.getFileHeader());
+			int count = 0;
+			for(SAMRecord record : reader) {
+				assertEquals(byLibrary.getClippingLength(record), byReadGroup.getClippingLength(record));
+				count++;
+			}
+			assertTrue(count > 0);
+			reader.close();
+		} catch (IOException | ParseException e) {
+			fail(e.toString());
+		}
+	}
+	
 	@Test
 	public void multiLengthClipping() {
 		ClassLoader classLoader = getClass().getClassLoader();
@@ -547,6 +624,8 @@ public class ClipSoftTest {
 			fail();
 		} catch (IOException e) {
 			fail();
+		} catch (InterruptedException | ExecutionException e) {
+			fail();
 		}
 	}
 	
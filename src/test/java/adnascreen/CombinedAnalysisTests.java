@@ -0,0 +1,147 @@
+package adnascreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class CombinedAnalysisTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private static final String TARGETS = "{'autosome':['1','2','3','4','5','6','7','8','9','10','11','12','13','14','15','16','17','18','19','20','21','22'],'X':'X','Y':'Y','MT':'MT'}";
+
+	/**
+	 * Copy of target-test.sam with damage scores, so all analyses have data
+	 */
+	private File inputWithDamageScores() throws IOException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		File output = testFolder.newFile("target-test.bam");
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(filename));
+				SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, output)){
+			int n = 0;
+			for(SAMRecord record : reader) {
+				if(n % 7 != 0) // some reads have no damage score
+					record.setAttribute("ds", (float) (n % 10) / 10);
+				writer.addAlignment(record);
+				n++;
+			}
+		}
+		return output;
+	}
+
+	private File bedFile() throws IOException {
+		File bed = testFolder.newFile("positions.bed");
+		try(PrintWriter w = new PrintWriter(bed)){
+			w.println("1\t31450\t31451");
+			w.println("2\t65424320\t65424321");
+			w.println("2\t65424900\t65424901");
+			w.println("10\t5473840\t5473841");
+		}
+		return bed;
+	}
+
+	private static List<String> records(File f) throws IOException {
+		List<String> records = new ArrayList<String>();
+		try(SamReader reader = SamReaderFactory.makeDefault().open(f)){
+			for(SAMRecord record : reader) {
+				records.add(record.getSAMString());
+			}
+		}
+		return records;
+	}
+
+	@Test
+	public void matchesStandalone() {
+		try {
+			File input = inputWithDamageScores();
+			String inputFilename = input.getAbsolutePath();
+			File bed = bedFile();
+			File stats = new File(testFolder.getRoot(), "stats");
+			File lengths = new File(testFolder.getRoot(), "lengths");
+			File duplicates = new File(testFolder.getRoot(), "duplicates");
+			File damage = new File(testFolder.getRoot(), "damage.bam");
+			File filtered = new File(testFolder.getRoot(), "filtered.bam");
+
+			String[] args = {"-i", inputFilename,
+					"--targets", TARGETS, "--stats", stats.getPath(), "--length-histogram", lengths.getPath(),
+					"--duplicates-histogram", duplicates.getPath(),
+					"--damage-output", damage.getPath(), "--damage", "0.45",
+					"--filter-output", filtered.getPath(), "--positions", bed.getPath(),
+					"--minimum_mapping_quality", "0", "--minimum_base_quality", "20", "-n", "2"
+			};
+			CombinedAnalysis.main(args);
+
+			String key = ReadMarkDuplicatesStatistics.keyFromFilename(inputFilename);
+			SAMStats expectedStats = new SAMStats(key, inputFilename, new JSONObject(TARGETS), 0);
+			assertEquals(expectedStats.toString() + "\n", new String(Files.readAllBytes(stats.toPath()), StandardCharsets.UTF_8));
+			assertEquals(expectedStats.lengthHistogramString() + "\n", new String(Files.readAllBytes(lengths.toPath()), StandardCharsets.UTF_8));
+
+			ByteArrayOutputStream expectedDuplicates = new ByteArrayOutputStream();
+			new DuplicatesHistogram(inputFilename).print(new PrintStream(expectedDuplicates, true));
+			assertEquals(expectedDuplicates.toString(), new String(Files.readAllBytes(duplicates.toPath()), StandardCharsets.UTF_8));
+
+			File expectedDamage = new File(testFolder.getRoot(), "expected_damage.bam");
+			DamageRestrict.filterDamageScore(inputFilename, expectedDamage.getPath(), "ds", 0.45f, null, 5);
+			List<String> damageRecords = records(damage);
+			assertTrue(damageRecords.size() > 0);
+			assertEquals(records(expectedDamage), damageRecords);
+
+			File expectedFiltered = new File(testFolder.getRoot(), "expected_filtered.bam");
+			FilterSAM.main(new String[] {"-i", inputFilename, "-o", expectedFiltered.getPath(), "-m", "0", "-q", "20", "-p", bed.getPath(), "-n", "2"});
+			List<String> filteredRecords = records(filtered);
+			assertTrue(filteredRecords.size() > 0);
+			assertEquals(records(expectedFiltered), filteredRecords);
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void closeFailureClosesLaterConsumers() {
+		List<String> closed = new ArrayList<String>();
+		List<AlignmentConsumer> consumers = new ArrayList<AlignmentConsumer>();
+		for(String name : new String[] {"stats", "histogram", "damage"}) {
+			consumers.add(new AlignmentConsumer() {
+				@Override
+				public void accept(SAMRecord record) {}
+
+				@Override
+				public void close() throws IOException {
+					closed.add(name);
+					if(!name.equals("damage"))
+						throw new IOException(name);
+				}
+			});
+		}
+		try {
+			CombinedAnalysis.closeAll(consumers);
+			fail("close failure was not reported");
+		} catch(IOException e) {
+			assertEquals("stats", e.getMessage());
+			assertEquals(1, e.getSuppressed().length);
+		}
+		assertEquals(3, closed.size());
+	}
+}
@@ -0,0 +1,125 @@
+package adnascreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+public class DamageRestrictTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	/**
+	 * Copies of target-test.sam records with damage scores, enough for several batches
+	 */
+	private File inputWithDamageScores() throws IOException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		File output = testFolder.newFile("damage.bam");
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(filename))){
+			SAMFileHeader header = reader.getFileHeader().clone();
+			header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+			SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, output);
+			List<SAMRecord> records = new ArrayList<SAMRecord>();
+			for(SAMRecord record : reader) {
+				records.add(record);
+			}
+			int n = 0;
+			for(int copy = 0; copy < 120; copy++) {
+				for(SAMRecord record : records) {
+					if(n % 7 != 0) // some reads have no damage score
+						record.setAttribute("ds", (float) (n % 10) / 10);
+					else
+						record.setAttribute("ds", null);
+					writer.addAlignment(record);
+					n++;
+				}
+			}
+			writer.close();
+		}
+		return output;
+	}
+
+	private static List<String> records(File f) throws IOException {
+		List<String> records = new ArrayList<String>();
+		// strict validation checks the BAM end of file block
+		try(SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.STRICT).open(f)){
+			for(SAMRecord record : reader) {
+				records.add(record.getSAMString());
+			}
+		}
+		return records;
+	}
+
+	@Test
+	public void threadedMatchesSingleThreaded() {
+		try {
+			String input = inputWithDamageScores().getAbsolutePath();
+			for(String extension : new String[] {".bam", ".sam"}) {
+				File expected = new File(testFolder.getRoot(), "expected" + extension);
+				File threaded = new File(testFolder.getRoot(), "threaded" + extension);
+				DamageRestrict.main(new String[] {"-i", input, "-o", expected.getAbsolutePath(), "-d", "0.45"});
+				DamageRestrict.main(new String[] {"-i", input, "-o", threaded.getAbsolutePath(), "-d", "0.45", "-n", "3"});
+				List<String> expectedRecords = records(expected);
+				assertTrue(expectedRecords.size() > 10000);
+				assertEquals(expectedRecords, records(threaded));
+			}
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void rawMatchesDecoded() {
+		try {
+			String input = inputWithDamageScores().getAbsolutePath();
+			File decoded = new File(testFolder.getRoot(), "decoded.bam");
+			File raw = new File(testFolder.getRoot(), "raw.bam");
+			DamageRestrict.filterDamageScore(input, decoded.getAbsolutePath(), "ds", 0.45f, null, 5);
+			// BAM to BAM copies records without decoding
+			DamageRestrict.main(new String[] {"-i", input, "-o", raw.getAbsolutePath(), "-d", "0.45"});
+			assertTrue(records(decoded).size() > 10000);
+			assertArrayEquals(Files.readAllBytes(decoded.toPath()), Files.readAllBytes(raw.toPath()));
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void truncatedInputLeavesNoOutput() throws IOException {
+		File input = inputWithDamageScores();
+		byte[] bytes = Files.readAllBytes(input.toPath());
+		File truncated = testFolder.newFile("truncated.bam");
+		Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+		for(String extension : new String[] {".bam", ".sam"}) {
+			File output = new File(testFolder.getRoot(), "threaded" + extension);
+			try {
+				DamageRestrict.main(new String[] {"-i", truncated.getAbsolutePath(), "-o", output.getAbsolutePath(), "-d", "0.45", "-n", "3"});
+				fail("truncated input was not reported");
+			} catch(Exception e) {
+				// expected
+			}
+			assertFalse(output.exists());
+		}
+	}
+}
@@ -19,7 +19,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
@@ -187,7 +189,40 @@ CCGGATG_AATAAGC_CCTTACG:GGAACGT:TTCCGTA:AAGGTAC_TTGTCAG:AATAGCT:CCACTGA:GGCGATC
 		}
 	}
 
-	protected void testDemultiplexCommon(String parentDirectory, int numSamplesToOutput, int maximumConcurrentOpenFiles, int thresholdReads, boolean useBAM) {
+	// Sort on write, with a small in memory limit to force spilling to temporary files
+	@Test
+	public void testDemultiplexSorted() {
+		String parentDirectory = testFolder.getRoot().toString();
+		testDemultiplexCommon(parentDirectory, 2, 2, 0, true, "--sort", "--maxRecordsInRam", "2");
+		String [] filenames = {
+				"CAGGTCG_GAATCTC_CGCTGAG-GTGATCT-TATCAGA-ACAGCTC_TCGCATT-AGTGCAA-CTATGCC-GACATGG",
+				"CAGGTCG_ATACTGA_CTAGACA-GACTCGC-TCGAGTG-AGTCTAT_CTGGCTA-GATTGAC-TCAATCG-AGCCAGT"
+		};
+		int [] expectedNumReads = {5, 4};
+		try {
+			for(int n = 0; n < filenames.length; n++) {
+				String bamFilename = filenames[n] + ".bam";
+				bamChecks(parentDirectory, bamFilename, expectedNumReads[n]);
+				assertTrue(new File(parentDirectory, filenames[n] + ".bai").exists());
+
+				SamInputResource bufferedSAMFile = SamInputResource.of(new BufferedInputStream(new FileInputStream(parentDirectory + "/" + bamFilename)));
+				try(SamReader reader = SamReaderFactory.makeDefault().open(bufferedSAMFile)){
+					assertEquals(SAMFileHeader.SortOrder.coordinate, reader.getFileHeader().getSortOrder());
+					SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+					SAMRecord previous = null;
+					for(SAMRecord record : reader) {
+						if(previous != null)
+							assertTrue(comparator.fileOrderCompare(previous, record) <= 0);
+						previous = record;
+					}
+				}
+			}
+		} catch (Exception e){
+			fail(e.toString());
+		}
+	}
+
+	protected void testDemultiplexCommon(String parentDirectory, int numSamplesToOutput, int maximumConcurrentOpenFiles, int thresholdReads, boolean useBAM, String... additionalArgs) {
 		ClassLoader classLoader = getClass().getClassLoader();
 		String filename_bam1 = classLoader.getResource("fastq/aligned_001.bam").getPath();
 		String filename_bam2 = classLoader.getResource("fastq/aligned_002.bam").getPath();
@@ -214,6 +249,7 @@ CCGGATG_AATAAGC_CCTTACG:GGAACGT:TTCCGTA:AAGGTAC_TTGTCAG:AATAGCT:CCACTGA:GGCGATC
 			}
 			args.add("--outputDirectory");
 			args.add(parentDirectory);
+			args.addAll(Arrays.asList(additionalArgs));
 			
 			File stdoutFile = testFolder.newFile("stdout");
 			args.add("--stdoutFile");
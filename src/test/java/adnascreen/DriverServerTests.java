@@ -0,0 +1,160 @@
+package adnascreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DriverServerTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	@Test
+	public void resolvePaths() throws IOException {
+		String directory = testFolder.getRoot().getPath();
+		String[] args = {"damagerestrict", "-i", "input.bam", "-o", "output.bam", "-d", "0.45", "-r", "/reference.fa"};
+		String[] expected = args.clone();
+		expected[2] = new File(directory, "input.bam").getPath();
+		expected[4] = new File(directory, "output.bam").getPath();
+		assertArrayEquals(expected, DriverServer.resolvePaths(args, directory));
+	}
+
+	@Test
+	public void resolveOutputOptions() {
+		String directory = testFolder.getRoot().getPath();
+		String[] args = {"combinedanalysis", "-i", "input.bam", "--stats", "stats.txt", "--length-histogram", "lengths.txt",
+				"--duplicates-histogram=duplicates.txt", "-d", "0.45", "--damage-output", "damage.bam"};
+		String[] expected = args.clone();
+		expected[2] = new File(directory, "input.bam").getPath();
+		expected[4] = new File(directory, "stats.txt").getPath();
+		expected[6] = new File(directory, "lengths.txt").getPath();
+		expected[7] = "--duplicates-histogram=" + new File(directory, "duplicates.txt").getPath();
+		expected[11] = new File(directory, "damage.bam").getPath();
+		assertArrayEquals(expected, DriverServer.resolvePaths(args, directory));
+	}
+
+	@Test
+	public void valueNamingFileIsNotResolved() throws IOException {
+		testFolder.newFolder("S1");
+		String directory = testFolder.getRoot().getPath();
+		String[] args = {"readgrouprewrite", "-i", "input.bam", "-o", "output.bam", "-s", "S1"};
+		String[] expected = args.clone();
+		expected[2] = new File(directory, "input.bam").getPath();
+		expected[4] = new File(directory, "output.bam").getPath();
+		assertArrayEquals(expected, DriverServer.resolvePaths(args, directory));
+	}
+
+	@Test
+	public void resolvePositionalFiles() {
+		String directory = testFolder.getRoot().getPath();
+		String[] args = {"demultiplexsam", "-b", "-n", "10", "--stdoutFile", "out.txt", "--stderrFile=err.txt", "--tempDirectory", "tmp",
+				"-sstats.txt", "--sort", "a.bam", "/b.bam"};
+		String[] expected = args.clone();
+		expected[5] = new File(directory, "out.txt").getPath();
+		expected[6] = "--stderrFile=" + new File(directory, "err.txt").getPath();
+		expected[8] = new File(directory, "tmp").getPath();
+		expected[9] = "-s" + new File(directory, "stats.txt").getPath();
+		expected[11] = new File(directory, "a.bam").getPath();
+		assertArrayEquals(expected, DriverServer.resolvePaths(args, directory));
+	}
+
+	@Test
+	public void resolveMultipleFiles() {
+		String directory = testFolder.getRoot().getPath();
+		String[] args = {"alignmentcomparison", "-c", "check.bam", "-i", "a.bam", "b.bam", "-r", "reference.fa", "NM"};
+		String[] expected = args.clone();
+		expected[2] = new File(directory, "check.bam").getPath();
+		expected[4] = new File(directory, "a.bam").getPath();
+		expected[5] = new File(directory, "b.bam").getPath();
+		expected[7] = new File(directory, "reference.fa").getPath();
+		assertArrayEquals(expected, DriverServer.resolvePaths(args, directory));
+	}
+
+	/**
+	 * Start a server on its own thread
+	 */
+	private static Thread start(DriverServer server) {
+		Thread serverThread = new Thread(() -> {
+			try {
+				server.run();
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		serverThread.start();
+		return serverThread;
+	}
+
+	@Test
+	public void jobs() throws Exception {
+		Path socket = new File(testFolder.getRoot(), "socket").toPath();
+		DriverServer server = new DriverServer(socket, 2);
+		Thread serverThread = start(server);
+		try {
+			// only the owner can connect
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socket));
+
+			ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+			ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+			String directory = testFolder.getRoot().getPath();
+			int status = DriverServer.submit(socket, directory, new String[] {"version"}, new PrintStream(stdout), new PrintStream(stderr));
+			assertEquals(0, status);
+			assertEquals(Driver.versionString() + System.lineSeparator(), new String(stdout.toByteArray(), StandardCharsets.UTF_8));
+
+			// relative paths are in the job's directory
+			try(PrintWriter w = new PrintWriter(testFolder.newFile("positions.bed"))){
+				w.println("1\t100\t101");
+			}
+			status = DriverServer.submit(socket, directory, new String[] {"compilepositions", "-i", "positions.bed", "-o", "positions.bin"}, new PrintStream(stdout), new PrintStream(stderr));
+			assertEquals(0, status);
+			assertTrue(TargetPositions.isBinary(new File(directory, "positions.bin").getPath()));
+
+			stderr.reset();
+			status = DriverServer.submit(socket, directory, new String[] {"nosuchprogram"}, new PrintStream(stdout), new PrintStream(stderr));
+			assertEquals(2, status);
+			assertTrue(new String(stderr.toByteArray(), StandardCharsets.UTF_8).contains("Not available in serve mode"));
+
+			// would exit the server
+			status = DriverServer.submit(socket, directory, new String[] {"barcodecount"}, new PrintStream(stdout), new PrintStream(stderr));
+			assertEquals(2, status);
+		} finally {
+			server.close();
+			serverThread.join();
+		}
+		assertFalse(socket.toFile().exists());
+	}
+
+	@Test(timeout = 20000)
+	public void silentClientTimesOut() throws Exception {
+		Path socket = new File(testFolder.getRoot(), "socket").toPath();
+		DriverServer server = new DriverServer(socket, 1);
+		server.handshakeTimeout = 200;
+		Thread serverThread = start(server);
+		try(SocketChannel silent = SocketChannel.open(UnixDomainSocketAddress.of(socket))){
+			// the only job slot is free again after the timeout
+			ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+			int status = DriverServer.submit(socket, testFolder.getRoot().getPath(), new String[] {"version"}, new PrintStream(stdout), new PrintStream(new ByteArrayOutputStream()));
+			assertEquals(0, status);
+			assertEquals(Driver.versionString() + System.lineSeparator(), new String(stdout.toByteArray(), StandardCharsets.UTF_8));
+		} finally {
+			server.close();
+			serverThread.join();
+		}
+	}
+}
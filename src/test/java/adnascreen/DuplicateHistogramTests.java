@@ -1,11 +1,21 @@
 package adnascreen;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
 
 public class DuplicateHistogramTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+	
 	@Test
 	public void testSingleRead() {
 		ClassLoader classLoader = getClass().getClassLoader();
@@ -49,4 +59,68 @@ public class DuplicateHistogramTests {
 		assertEquals(1, histogram[2]);
 		assertEquals(1, histogram[3]);
 	}
+	
+	private static SAMRecord alignment(SAMFileHeader header, String reference, int start, String duplicatesTag) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName("read");
+		record.setReferenceName(reference);
+		record.setAlignmentStart(start);
+		record.setCigarString("10M");
+		record.setReadString("ACGTACGTAC");
+		if(duplicatesTag != null)
+			record.setAttribute(DemultiplexSAM.duplicatesSAMTag, duplicatesTag);
+		return record;
+	}
+	
+	// Many distinct reads at one start position, including reads without a duplicates tag
+	@Test
+	public void testManyReadsAtPosition() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("1", 100000));
+		header.addSequence(new SAMSequenceRecord("2", 100000));
+		
+		DuplicatesHistogram duplicatesHistogram = new DuplicatesHistogram();
+		// 500 reads seen once, 100 reads seen three times
+		for(int n = 0; n < 500; n++) {
+			duplicatesHistogram.add(alignment(header, "1", 100, "AAA_CCC_" + n));
+		}
+		for(int repeat = 0; repeat < 3; repeat++) {
+			for(int n = 500; n < 600; n++) {
+				duplicatesHistogram.add(alignment(header, "1", 100, "AAA_CCC_" + n));
+			}
+		}
+		// same tag on another reference and position is a different read
+		duplicatesHistogram.add(alignment(header, "2", 100, "AAA_CCC_0"));
+		duplicatesHistogram.add(alignment(header, "2", 200, "AAA_CCC_0"));
+		// reads without tags are counted together
+		duplicatesHistogram.add(alignment(header, "2", 300, null));
+		duplicatesHistogram.add(alignment(header, "2", 300, null));
+		duplicatesHistogram.finish();
+		
+		int [] histogram = duplicatesHistogram.getHistogram();
+		assertEquals(3, histogram.length);
+		assertEquals(502, histogram[0]);
+		assertEquals(1, histogram[1]);
+		assertEquals(100, histogram[2]);
+	}
+	
+	@Test
+	public void testThreadedMatchesSingleThreaded() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String[] samFilenames = {
+				classLoader.getResource("unique_read_histogram/doctored_histogram.sam").getPath(),
+				classLoader.getResource("target-test.sam").getPath()
+		};
+		try {
+			for(String samFilename : samFilenames) {
+				String bamFilename = SAMStatsTest.sortedIndexedBAM(samFilename, testFolder.getRoot()).getPath();
+				int [] expected = new DuplicatesHistogram(bamFilename).getHistogram();
+				int [] threaded = new DuplicatesHistogram(bamFilename, 3).getHistogram();
+				assertArrayEquals(expected, threaded);
+			}
+		}
+		catch(Exception e) {
+			fail(e.toString());
+		}
+	}
 }
@@ -0,0 +1,62 @@
+package adnascreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class DuplicatesTagRewriteTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	@Test
+	public void rawMatchesDecoded() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		try {
+			File sam = new File(testFolder.getRoot(), "barcodes.sam");
+			File bam = new File(testFolder.getRoot(), "barcodes.bam");
+			try(SamReader reader = SamReaderFactory.makeDefault().open(new File(filename));
+					SAMFileWriter samWriter = new SAMFileWriterFactory().makeSAMWriter(reader.getFileHeader(), true, sam);
+					SAMFileWriter bamWriter = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, bam)){
+				int n = 0;
+				for(SAMRecord record : reader) {
+					// some records are missing a barcode or already have a duplicates tag
+					if(n % 5 != 0)
+						record.setAttribute("p5", "ACGTACG");
+					record.setAttribute("p7", "TTGCA");
+					if(n % 3 == 0)
+						record.setAttribute(DemultiplexSAM.duplicatesSAMTag, "old");
+					samWriter.addAlignment(record);
+					bamWriter.addAlignment(record);
+					n++;
+				}
+			}
+			File decoded = new File(testFolder.getRoot(), "decoded.bam");
+			File raw = new File(testFolder.getRoot(), "raw.bam");
+			DuplicatesTagRewrite.main(new String[] {"-i", sam.getAbsolutePath(), "-o", decoded.getAbsolutePath(), "-l", "p5", "-k", "p7"});
+			// BAM input is edited without decoding records
+			DuplicatesTagRewrite.main(new String[] {"-i", bam.getAbsolutePath(), "-o", raw.getAbsolutePath(), "-l", "p5", "-k", "p7"});
+			assertArrayEquals(Files.readAllBytes(decoded.toPath()), Files.readAllBytes(raw.toPath()));
+			
+			try(SamReader reader = SamReaderFactory.makeDefault().open(raw)){
+				SAMRecord record = reader.iterator().next();
+				assertEquals("null_TTGCA_" + record.getReadLength(), record.getStringAttribute(DemultiplexSAM.duplicatesSAMTag));
+			}
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package adnascreen;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -9,7 +10,11 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -224,4 +229,52 @@ public class FilterSAMTests {
 			fail();
 		}
 	}
+	
+	@Test
+	public void indexedMatchesStreaming() {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String samFilename = classLoader.getResource("target-test.sam").getPath();
+		try {
+			File bam = SAMStatsTest.sortedIndexedBAM(samFilename, testFolder.getRoot());
+			// positions near the start of some reads, with some in adjacent chunks
+			File bed = testFolder.newFile("positions.bed");
+			try(PrintWriter w = new PrintWriter(bed);
+					SamReader reader = SamReaderFactory.makeDefault().open(bam)){
+				int n = 0;
+				for(SAMRecord record : reader) {
+					if(!record.getReadUnmappedFlag() && n++ % 3 == 0) {
+						int position = record.getAlignmentStart() + 5;
+						w.println(record.getReferenceName() + "\t" + (position - 1) + "\t" + position);
+					}
+				}
+			}
+			
+			File expected = testFolder.newFile("expected.sam");
+			String[] args = {"-i", bam.getAbsolutePath(), "-o", expected.getAbsolutePath(), "-m", "0", "-q", "20", "-p", bed.getAbsolutePath(), "-n", "2"};
+			FilterSAM.main(args);
+			byte[] expectedBytes = Files.readAllBytes(expected.toPath());
+			assertTrue(expectedBytes.length > 0);
+			
+			Options options = new Options();
+			Clipping.addSoftClipCommandLineOptions(options);
+			Clipping clipping = new Clipping(new DefaultParser().parse(options, new String[] {"-n", "2"}));
+			File compiled = new File(testFolder.getRoot(), "positions.bin");
+			TargetPositions.main(new String[] {"-i", bed.getAbsolutePath(), "-o", compiled.getAbsolutePath()});
+			File fromCompiled = testFolder.newFile("compiled.sam");
+			args[3] = fromCompiled.getAbsolutePath();
+			args[9] = compiled.getAbsolutePath();
+			FilterSAM.main(args);
+			assertArrayEquals(expectedBytes, Files.readAllBytes(fromCompiled.toPath()));
+			
+			for(int intervalsPerChunk : new int[] {1, 2, FilterSAM.INTERVALS_PER_CHUNK}) {
+				File indexed = testFolder.newFile("indexed" + intervalsPerChunk + ".sam");
+				FilterSAM.filterIndexed(bam.getAbsolutePath(), indexed.getAbsolutePath(), false, new FilterSAM(bed.getAbsolutePath()), clipping, 
+						0, 20, 3, intervalsPerChunk);
+				assertArrayEquals(expectedBytes, Files.readAllBytes(indexed.toPath()));
+			}
+		}
+		catch(Exception e) {
+			fail(e.toString());
+		}
+	}
 }
@@ -0,0 +1,64 @@
+package adnascreen;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.NumberFormat;
+
+import org.junit.Test;
+
+public class LengthHistogramTests {
+	private static final String HEADER = "Value \t Freq. \t Pct. \t Cum Pct. \n";
+
+	@Test
+	public void empty() {
+		LengthHistogram histogram = new LengthHistogram();
+		assertEquals(0, histogram.getTotal());
+		assertEquals(HEADER, histogram.toString());
+	}
+
+	@Test
+	public void counts() {
+		LengthHistogram histogram = new LengthHistogram();
+		histogram.add(35);
+		histogram.add(40);
+		histogram.add(35);
+		histogram.add(50);
+		assertEquals(4, histogram.getTotal());
+		assertEquals(2, histogram.get(35));
+		assertEquals(1, histogram.get(40));
+		assertEquals(0, histogram.get(41));
+
+		NumberFormat percent = NumberFormat.getPercentInstance();
+		String expected = HEADER
+				+ "35\t2\t" + percent.format(0.5) + "\t" + percent.format(0.5) + "\n"
+				+ "40\t1\t" + percent.format(0.25) + "\t" + percent.format(0.75) + "\n"
+				+ "50\t1\t" + percent.format(0.25) + "\t" + percent.format(1.0) + "\n";
+		assertEquals(expected, histogram.toString());
+	}
+
+	@Test
+	public void longReads() {
+		LengthHistogram histogram = new LengthHistogram();
+		histogram.add(30);
+		histogram.add(1000);
+		assertEquals(1, histogram.get(1000));
+		assertEquals(2, histogram.getTotal());
+	}
+
+	@Test
+	public void combine() {
+		LengthHistogram a = new LengthHistogram();
+		a.add(30);
+		a.add(31, 5);
+		LengthHistogram b = new LengthHistogram();
+		b.add(31);
+		b.add(500, 2);
+
+		a.combine(b);
+		assertEquals(1, a.get(30));
+		assertEquals(6, a.get(31));
+		assertEquals(2, a.get(500));
+		assertEquals(9, a.getTotal());
+		assertEquals(1, b.get(31));
+	}
+}
@@ -0,0 +1,120 @@
+package adnascreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+public class OrderedBatchesTests {
+	/**
+	 * Records numbered by read name, failing after the given number of records
+	 */
+	private static Iterator<SAMRecord> records(long count, long failAfter) {
+		SAMFileHeader header = new SAMFileHeader();
+		return new Iterator<SAMRecord>() {
+			private long n = 0;
+
+			@Override
+			public boolean hasNext() {
+				if(n == failAfter)
+					throw new IllegalStateException("truncated input");
+				return n < count;
+			}
+
+			@Override
+			public SAMRecord next() {
+				SAMRecord record = new SAMRecord(header);
+				record.setReadName(Long.toString(n++));
+				return record;
+			}
+		};
+	}
+
+	@Test
+	public void inputOrder() throws Exception {
+		List<String> names = new ArrayList<String>();
+		long count = 5 * OrderedBatches.BATCH_SIZE + 17;
+		OrderedBatches.run(records(count, -1), 4, (batch, batchStart) -> {
+			assertEquals(Long.toString(batchStart), batch.get(0).getReadName());
+			return batch;
+		}, batch -> {
+			for(SAMRecord record : batch) {
+				names.add(record.getReadName());
+			}
+		});
+		assertEquals(count, names.size());
+		for(int n = 0; n < names.size(); n++) {
+			assertEquals(Integer.toString(n), names.get(n));
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void inputErrorBeforeEnd() throws Exception {
+		List<Integer> sizes = new ArrayList<Integer>();
+		try {
+			OrderedBatches.run(records(Long.MAX_VALUE, 3 * OrderedBatches.BATCH_SIZE + 5), 2, (batch, batchStart) -> batch,
+					batch -> sizes.add(batch.size()));
+			fail("input error was not reported");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(3, sizes.size());
+	}
+
+	@Test(timeout = 20000)
+	public void consumerErrorStopsInput() throws Exception {
+		// input that would fill the results queue
+		Iterator<SAMRecord> input = records(Long.MAX_VALUE, -1);
+		try {
+			OrderedBatches.run(input, 2, (batch, batchStart) -> batch, batch -> {
+				throw new IOException("disk full");
+			});
+			fail("output error was not reported");
+		} catch(IOException e) {
+			assertEquals("disk full", e.getMessage());
+		}
+		assertNoPipelineThreads();
+	}
+
+	@Test(timeout = 20000)
+	public void processingErrorStopsInput() throws Exception {
+		try {
+			OrderedBatches.run(records(Long.MAX_VALUE, -1), 2, (batch, batchStart) -> {
+				throw new IllegalArgumentException("bad record");
+			}, batch -> {});
+			fail("processing error was not reported");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertNoPipelineThreads();
+	}
+
+	/**
+	 * Input and worker threads stop soon after the calling thread fails
+	 */
+	private static void assertNoPipelineThreads() throws InterruptedException {
+		for(int attempt = 0; attempt < 100; attempt++) {
+			boolean running = false;
+			for(Thread thread : Thread.getAllStackTraces().keySet()) {
+				for(StackTraceElement frame : thread.getStackTrace()) {
+					if(frame.getClassName().startsWith(OrderedBatches.class.getName()) && thread != Thread.currentThread())
+						running = true;
+				}
+			}
+			if(!running)
+				return;
+			Thread.sleep(100);
+		}
+		fail("pipeline threads still running");
+	}
+}
@@ -0,0 +1,148 @@
+package adnascreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class RawBAMReaderTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private File bam(String samFilename) throws IOException {
+		File bam = new File(testFolder.getRoot(), new File(samFilename).getName() + ".bam");
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(samFilename));
+				SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, bam)){
+			for(SAMRecord record : reader) {
+				writer.addAlignment(record);
+			}
+		}
+		return bam;
+	}
+
+	@Test
+	public void matchesDecodedRecords() throws IOException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String samFilename = classLoader.getResource("target-test.sam").getPath();
+		File bam = bam(samFilename);
+		assertTrue(RawBAMReader.isBAM(bam));
+		assertFalse(RawBAMReader.isBAM(new File(samFilename)));
+
+		int count = 0;
+		try(SamReader reader = SamReaderFactory.makeDefault().open(bam);
+				RawBAMReader raw = new RawBAMReader(bam)){
+			assertEquals(reader.getFileHeader(), raw.getFileHeader());
+			SAMRecordIterator i = reader.iterator();
+			while(i.hasNext()) {
+				SAMRecord record = i.next();
+				assertTrue(raw.next());
+				assertEquals(record.getReadName(), raw.getReadName());
+				assertEquals(record.getFlags(), raw.getFlags());
+				assertEquals((int) record.getReferenceIndex(), raw.getReferenceIndex());
+				assertEquals(record.getAlignmentStart(), raw.getAlignmentStart());
+				// auxiliary data is at the end of the record
+				assertEquals(record.getAttributesBinarySize(), raw.getRecordLength() - raw.getAuxiliaryOffset());
+				count++;
+			}
+			assertFalse(raw.next());
+		}
+		assertTrue(count > 0);
+	}
+
+	@Test
+	public void findTag() throws IOException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String samFilename = classLoader.getResource("target-test.sam").getPath();
+		File bam = new File(testFolder.getRoot(), "tags.bam");
+		// tags of every type before the tag to find
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(samFilename));
+				SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, bam)){
+			int n = 0;
+			for(SAMRecord record : reader) {
+				record.setAttribute("XA", 'c');
+				record.setAttribute("XB", (byte) -3);
+				record.setAttribute("XS", (short) 1000);
+				record.setAttribute("XI", 100000);
+				record.setAttribute("XZ", "text");
+				record.setAttribute("XC", new byte[] {1, 2, 3});
+				record.setAttribute("XF", new float[] {0.5f, 1.5f});
+				if(n % 3 != 0)
+					record.setAttribute("ds", n / 10.0f);
+				writer.addAlignment(record);
+				n++;
+			}
+		}
+		try(SamReader reader = SamReaderFactory.makeDefault().open(bam);
+				RawBAMReader raw = new RawBAMReader(bam)){
+			for(SAMRecord record : reader) {
+				assertTrue(raw.next());
+				int offset = raw.findTag("ds");
+				if(record.hasAttribute("ds"))
+					assertEquals(record.getFloatAttribute("ds"), raw.getFloatTag(offset), 0);
+				else
+					assertEquals(-1, offset);
+				assertTrue(raw.findTag("XF") > 0);
+				assertEquals(-1, raw.findTag("YY"));
+			}
+		}
+	}
+
+	@Test
+	public void editMatchesDecodedEdit() throws IOException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String samFilename = classLoader.getResource("target-test.sam").getPath();
+		File bam = new File(testFolder.getRoot(), "tags.bam");
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(samFilename));
+				SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, bam)){
+			for(SAMRecord record : reader) {
+				record.setAttribute("XI", 100000);
+				record.setAttribute("XZ", "text");
+				writer.addAlignment(record);
+			}
+		}
+		// tags before, between, and after existing tags, and replacing an existing tag
+		String[] tags = {"XD", "AA", "zz", "XZ"};
+		try(SamReader reader = SamReaderFactory.makeDefault().open(bam);
+				RawBAMReader raw = new RawBAMReader(bam)){
+			BAMRecordCodec codec = new BAMRecordCodec(reader.getFileHeader());
+			int n = 0;
+			for(SAMRecord record : reader) {
+				assertTrue(raw.next());
+				String tag = tags[n % tags.length];
+				String value = (n % 2 == 0) ? "A_B_" + n : "a much longer value than any of the existing tag values " + n;
+				record.setAttribute(tag, value);
+				raw.setStringTag(tag, value);
+				assertEquals(value, raw.getStringTag(tag));
+				assertEquals(record.getReadLength(), raw.getReadLength());
+				int nameLength = record.getReadName().length() - n % 3;
+				record.setReadName(record.getReadName().substring(0, nameLength));
+				raw.truncateReadName(nameLength);
+				
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				codec.setOutputStream(expected);
+				codec.encode(record);
+				ByteArrayOutputStream actual = new ByteArrayOutputStream();
+				raw.writeRecord(actual);
+				assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+				n++;
+			}
+			assertTrue(n > tags.length);
+		}
+	}
+}
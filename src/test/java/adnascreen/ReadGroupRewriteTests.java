@@ -0,0 +1,93 @@
+package adnascreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMProgramRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+public class ReadGroupRewriteTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	/**
+	 * @return header, without program command lines which contain filenames, then records
+	 */
+	private static List<String> headerAndRecords(File f) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		// strict validation checks the BAM end of file block
+		try(SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.STRICT).open(f)){
+			SAMFileHeader header = reader.getFileHeader();
+			for(SAMProgramRecord program : header.getProgramRecords()) {
+				program.setCommandLine(null);
+			}
+			lines.add(header.getSAMString());
+			for(SAMRecord record : reader) {
+				lines.add(record.getSAMString());
+			}
+		}
+		return lines;
+	}
+
+	private void rawMatchesDecoded(File bam) throws Exception {
+		File decoded = new File(testFolder.getRoot(), "decoded.sam");
+		File raw = new File(testFolder.getRoot(), "raw.bam");
+		ReadGroupRewrite.main(new String[] {"-i", bam.getAbsolutePath(), "-o", decoded.getAbsolutePath(), "-s", "S1", "-l", "L1"});
+		ReadGroupRewrite.main(new String[] {"-i", bam.getAbsolutePath(), "-o", raw.getAbsolutePath(), "-s", "S1", "-l", "L1"});
+		List<String> expected = headerAndRecords(decoded);
+		assertTrue(expected.get(0).contains("SM:S1"));
+		assertTrue(expected.size() > 1);
+		assertEquals(expected, headerAndRecords(raw));
+	}
+
+	@Test
+	public void blocksCopied() throws Exception {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("multi_lib.sam").getPath();
+		File bam = new File(testFolder.getRoot(), "separate_blocks.bam");
+		// records start in a new block, as samtools writes them
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(filename));
+				FileOutputStream output = new FileOutputStream(bam)){
+			List<SAMRecord> records = new ArrayList<SAMRecord>();
+			for(SAMRecord record : reader) {
+				records.add(record);
+			}
+			BAMBody.writeHeaderBlocks(output, reader.getFileHeader(), 5);
+			output.write(BAMBody.compress(records, reader.getFileHeader(), 5));
+			output.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		}
+		try(RawBAMReader reader = new RawBAMReader(bam)){
+			assertEquals(0, BlockCompressedFilePointerUtil.getBlockOffset(reader.getFilePointer()));
+		}
+		rawMatchesDecoded(bam);
+	}
+
+	@Test
+	public void sharedBlockRecompressed() throws Exception {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("multi_lib.sam").getPath();
+		// htsjdk writes the first records in the last header block
+		File bam = SAMStatsTest.sortedIndexedBAM(filename, testFolder.getRoot());
+		try(RawBAMReader reader = new RawBAMReader(bam)){
+			assertNotEquals(0, BlockCompressedFilePointerUtil.getBlockOffset(reader.getFilePointer()));
+		}
+		rawMatchesDecoded(bam);
+	}
+}
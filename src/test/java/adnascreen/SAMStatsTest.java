@@ -3,9 +3,21 @@ package adnascreen;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.json.JSONObject;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
 
 /**
  * Test code for counting read targets after alignment
@@ -13,6 +25,9 @@ import org.junit.Test;
  *
  */
 public class SAMStatsTest {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+	
 	String singleTargets = "{"
 			+ "'1':'1',"
 			+ "'2':'2',"
@@ -169,4 +184,45 @@ public class SAMStatsTest {
 			fail();
 		}
 	}
+	
+	/**
+	 * Write a coordinate-sorted and indexed BAM copy of a SAM file
+	 */
+	public static File sortedIndexedBAM(String samFilename, File directory) throws IOException {
+		File bam = new File(directory, new File(samFilename).getName() + ".bam");
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(samFilename))){
+			SAMFileHeader header = reader.getFileHeader().clone();
+			header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+			SAMFileWriterFactory factory = new SAMFileWriterFactory().setCreateIndex(true);
+			try(SAMFileWriter writer = factory.makeBAMWriter(header, false, bam)){
+				for(SAMRecord record : reader) {
+					writer.addAlignment(record);
+				}
+			}
+		}
+		return bam;
+	}
+	
+	@Test
+	public void threadedMatchesSingleThreaded(){
+		String groupedTargets = "{'autosome':['1','2','3','4','5','6','7','8','9','10','11','12','13','14','15','16','17','18','19','20','21','22'],'X':'X','Y':'Y','MT':'MT',"
+				+ "'human':['1','2','3','4','5','6','7','8','9','10','11','12','13','14','15','16','17','18','19','20','21','22','X','Y','MT']}";
+		
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		try{
+			String bamFilename = sortedIndexedBAM(filename, testFolder.getRoot()).getPath();
+			String key = new IndexAndBarcodeKey("47_2_Q20_Q41").toString();
+			JSONObject targetJSON = new JSONObject(groupedTargets);
+			for(int minimumMappingQuality : new int[] {0, 30}) {
+				SAMStats single = new SAMStats(key, bamFilename, targetJSON, minimumMappingQuality);
+				SAMStats threaded = new SAMStats(key, bamFilename, targetJSON, minimumMappingQuality, 4);
+				assertEquals(single.toString(), threaded.toString());
+				assertEquals(single.lengthHistogramString(), threaded.lengthHistogramString());
+			}
+		}
+		catch(Exception e){
+			fail(e.toString());
+		}
+	}
 }
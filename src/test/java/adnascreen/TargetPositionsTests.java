@@ -0,0 +1,88 @@
+package adnascreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TargetPositionsTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	private TargetPositions positions() throws IOException {
+		File bed = testFolder.newFile("positions.bed");
+		try(PrintWriter w = new PrintWriter(bed)){
+			// out of order, and one long interval covering later positions
+			w.println("1\t300\t301");
+			w.println("1\t100\t250");
+			w.println("1\t200\t201");
+			w.println("2\t50\t51");
+		}
+		return TargetPositions.fromBED(bed.getAbsolutePath());
+	}
+
+	@Test
+	public void sortedByStart() throws IOException {
+		TargetPositions.Contig contig = positions().getContig("1");
+		assertEquals(3, contig.size());
+		// BED start is 0-based, stored start is 1-based
+		assertEquals(101, contig.start(0));
+		assertEquals(250, contig.end(0));
+		assertEquals(201, contig.start(1));
+		assertEquals(301, contig.start(2));
+		assertEquals(250, contig.maximumEnd(1));
+	}
+
+	@Test
+	public void cursor() throws IOException {
+		TargetPositions.Cursor cursor = positions().cursor();
+		assertNotNull(cursor.seek("1", 10));
+		assertEquals(0, cursor.index());
+		// long interval still overlaps
+		cursor.seek("1", 240);
+		assertEquals(0, cursor.index());
+		cursor.seek("1", 260);
+		assertEquals(2, cursor.index());
+		// out of order alignment moves the cursor back
+		cursor.seek("1", 150);
+		assertEquals(0, cursor.index());
+		cursor.seek("1", 400);
+		assertEquals(3, cursor.index());
+		assertNotNull(cursor.seek("2", 1));
+		assertEquals(0, cursor.index());
+		assertNull(cursor.seek("X", 1));
+	}
+
+	@Test
+	public void binaryMatchesBED() throws IOException, ParseException {
+		File bed = new File(testFolder.getRoot(), "positions.bed");
+		TargetPositions text = positions();
+		File binary = new File(testFolder.getRoot(), "positions.bin");
+		TargetPositions.main(new String[] {"-i", bed.getAbsolutePath(), "-o", binary.getAbsolutePath()});
+		
+		assertFalse(TargetPositions.isBinary(bed.getAbsolutePath()));
+		assertTrue(TargetPositions.isBinary(binary.getAbsolutePath()));
+		TargetPositions mapped = TargetPositions.load(binary.getAbsolutePath());
+		for(String referenceName : new String[] {"1", "2"}) {
+			TargetPositions.Contig expected = text.getContig(referenceName);
+			TargetPositions.Contig actual = mapped.getContig(referenceName);
+			assertEquals(expected.size(), actual.size());
+			for(int n = 0; n < expected.size(); n++) {
+				assertEquals(expected.start(n), actual.start(n));
+				assertEquals(expected.end(n), actual.end(n));
+				assertEquals(expected.maximumEnd(n), actual.maximumEnd(n));
+			}
+		}
+		assertNull(mapped.getContig("X"));
+	}
+}
@@ -0,0 +1,187 @@
+package adnascreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.cli.MissingOptionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+public class TransformChainTests {
+	@Rule
+	public TemporaryFolder testFolder = new TemporaryFolder();
+
+	/**
+	 * Copies of target-test.sam records with damage scores and barcode tags
+	 * @param copies more than one copy is written unsorted
+	 */
+	private File input(int copies) throws IOException {
+		ClassLoader classLoader = getClass().getClassLoader();
+		String filename = classLoader.getResource("target-test.sam").getPath();
+		File output = testFolder.newFile("input" + copies + ".bam");
+		try(SamReader reader = SamReaderFactory.makeDefault().open(new File(filename))){
+			SAMFileHeader header = reader.getFileHeader().clone();
+			if(copies > 1)
+				header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+			List<SAMRecord> records = new ArrayList<SAMRecord>();
+			for(SAMRecord record : reader) {
+				records.add(record);
+			}
+			try(SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, output)){
+				int n = 0;
+				for(int copy = 0; copy < copies; copy++) {
+					for(SAMRecord record : records) {
+						if(n % 7 != 0) // some reads have no damage score
+							record.setAttribute("ds", (float) (n % 10) / 10);
+						else
+							record.setAttribute("ds", null);
+						record.setAttribute("p5", "ACGTAC");
+						writer.addAlignment(record);
+						n++;
+					}
+				}
+			}
+		}
+		return output;
+	}
+
+	/**
+	 * Positions near the start of some reads
+	 */
+	private File bedFile(File input) throws IOException {
+		File bed = testFolder.newFile(input.getName() + ".bed");
+		try(PrintWriter w = new PrintWriter(bed);
+				SamReader reader = SamReaderFactory.makeDefault().open(input)){
+			int n = 0;
+			for(SAMRecord record : reader) {
+				if(!record.getReadUnmappedFlag() && n++ % 3 == 0) {
+					int position = record.getAlignmentStart() + 5;
+					w.println(record.getReferenceName() + "\t" + (position - 1) + "\t" + position);
+				}
+			}
+		}
+		return bed;
+	}
+
+	private static List<String> records(File f) throws IOException {
+		List<String> records = new ArrayList<String>();
+		try(SamReader reader = SamReaderFactory.makeDefault().open(f)){
+			for(SAMRecord record : reader) {
+				records.add(record.getSAMString());
+			}
+		}
+		return records;
+	}
+
+	@Test
+	public void matchesStandalone() {
+		try {
+			for(int copies : new int[] {1, 50}) {
+				String input = input(copies).getAbsolutePath();
+				String bed = bedFile(new File(input)).getAbsolutePath();
+				File folder = testFolder.newFolder("copies" + copies);
+
+				// standalone programs, each reading the output of the previous one
+				File tagged = new File(folder, "tagged.bam");
+				DuplicatesTagRewrite.main(new String[] {"-i", input, "-o", tagged.getPath(), "-l", "p5"});
+				File clipped = new File(folder, "clipped.bam");
+				Clipping.main(new String[] {"-i", tagged.getPath(), "-o", clipped.getPath(), "-n", "2"});
+				File damage = new File(folder, "damage.bam");
+				DamageRestrict.main(new String[] {"-i", clipped.getPath(), "-o", damage.getPath(), "-d", "0.45"});
+				File expected = new File(folder, "expected.bam");
+				FilterSAM.main(new String[] {"-i", damage.getPath(), "-o", expected.getPath(), "-m", "0", "-q", "20", "-p", bed});
+				List<String> expectedRecords = records(expected);
+				assertTrue(expectedRecords.size() > 0);
+
+				for(String threads : new String[] {"1", "3"}) {
+					File chained = new File(folder, "chained" + threads + ".bam");
+					TransformChain.main(new String[] {"-i", input, "-o", chained.getPath(), "--threads", threads,
+							"--steps", "duplicatestagrewrite,softclip,damagerestrict,filtersam",
+							"--p5-barcode-tag", "p5", "-n", "2", "--damage", "0.45",
+							"--positions", bed, "--minimum_mapping_quality", "0", "--minimum_base_quality", "20"});
+					assertEquals(expectedRecords, records(chained));
+				}
+			}
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void filterClipsWithoutClippingStep() {
+		try {
+			String input = input(1).getAbsolutePath();
+			String bed = bedFile(new File(input)).getAbsolutePath();
+			File expected = new File(testFolder.getRoot(), "expected.sam");
+			FilterSAM.main(new String[] {"-i", input, "-o", expected.getPath(), "-m", "0", "-q", "20", "-p", bed, "-n", "2"});
+			File chained = new File(testFolder.getRoot(), "chained.sam");
+			TransformChain.main(new String[] {"-i", input, "-o", chained.getPath(), "--steps", "filtersam",
+					"-n", "2", "--positions", bed, "--minimum_mapping_quality", "0", "--minimum_base_quality", "20"});
+			assertEquals(records(expected), records(chained));
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void errorsPropagateAsStandalone() throws IOException {
+		// target-test.sam read names have no barcodes
+		String input = input(1).getAbsolutePath();
+		try {
+			BarcodeMover.main(new String[] {"-i", input, "-o", new File(testFolder.getRoot(), "expected.bam").getPath()});
+			fail("standalone BarcodeMover accepted read names without barcodes");
+		} catch(IllegalArgumentException e) {
+			// expected
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+		for(String threads : new String[] {"1", "3"}) {
+			File chained = new File(testFolder.getRoot(), "chained" + threads + ".bam");
+			try {
+				TransformChain.main(new String[] {"-i", input, "-o", chained.getPath(),
+						"--threads", threads, "--steps", "barcodemover"});
+				fail("chain dropped records that standalone BarcodeMover rejects");
+			} catch(IllegalArgumentException e) {
+				// expected
+			} catch(ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalArgumentException);
+				// incomplete output is deleted
+				assertFalse(chained.exists());
+			} catch(Exception e) {
+				fail(e.toString());
+			}
+		}
+	}
+
+	@Test
+	public void missingStepOption() throws IOException {
+		String input = input(1).getAbsolutePath();
+		try {
+			TransformChain.main(new String[] {"-i", input, "-o", new File(testFolder.getRoot(), "chained.bam").getPath(),
+					"--steps", "softclip,damagerestrict", "-n", "2"});
+			fail("damagerestrict step without --damage");
+		} catch(MissingOptionException e) {
+			assertTrue(e.getMessage().contains("--damage"));
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+}